@@ -0,0 +1,8 @@
+#!/bin/sh
+# Stand-in for itex2MML to try the wiki without it, e.g.
+# dbw.wiki.itex2mml.command=/path/to/itex2mml-stub.sh
+# Wraps the TeX read from stdin in a math element, exits with 1 for empty input.
+tex=$(cat)
+[ -n "$tex" ] || exit 1
+printf '<math xmlns="http://www.w3.org/1998/Math/MathML"><mtext>%s</mtext></math>\n' \
+	"$(printf '%s' "$tex" | sed -e 's/&/\&amp;/g' -e 's/</\&lt;/g' -e 's/>/\&gt;/g')"
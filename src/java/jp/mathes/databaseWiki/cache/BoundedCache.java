@@ -0,0 +1,199 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe cache bounded by the total weight of its entries. Eviction is
+ * least recently used, but a new entry only replaces the eviction candidates
+ * if it was requested more often recently than they were (TinyLFU admission),
+ * so a scan over many cold keys does not flush the hot ones.
+ */
+public class BoundedCache<K, V> {
+
+	/**
+	 * weight of an entry, e.g. its size in bytes
+	 */
+	public static interface Weigher<K, V> {
+		long weigh(K key, V value);
+	}
+
+	/**
+	 * selects the keys to drop in {@link BoundedCache#invalidate(KeyFilter)}
+	 */
+	public static interface KeyFilter<K> {
+		boolean matches(K key);
+	}
+
+	private static class Entry<V> {
+		private final V value;
+		private final long weight;
+		private final long createdAt;
+
+		public Entry(final V value, final long weight) {
+			this.value = value;
+			this.weight = weight;
+			this.createdAt = System.currentTimeMillis();
+		}
+	}
+
+	private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(
+		16, 0.75f, true);
+	private final FrequencySketch sketch;
+	private final Weigher<K, V> weigher;
+	private final long maxWeight;
+	private final long ttl;
+	private long weight = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long rejections = 0;
+
+	/**
+	 * cache bounded by the number of entries
+	 *
+	 * @param ttl seconds after which entries expire, 0 for no expiry
+	 */
+	public BoundedCache(final int maxEntries, final int ttl) {
+		this(maxEntries, maxEntries, ttl, null);
+	}
+
+	/**
+	 * @param expectedEntries sizes the frequency sketch
+	 * @param weigher null weighs every entry with 1
+	 */
+	public BoundedCache(final long maxWeight, final int expectedEntries,
+		final int ttl, final Weigher<K, V> weigher) {
+		this.maxWeight = maxWeight;
+		this.ttl = ttl * 1000L;
+		this.weigher = weigher;
+		this.sketch = new FrequencySketch(expectedEntries);
+	}
+
+	/**
+	 * cache keyed by text and bounded by bytes, two per character of the key
+	 * and of a text value. Other values, e.g. compiled templates, count as much
+	 * as their key.
+	 *
+	 * @param maxBytes 0 disables the cache
+	 */
+	public static <V> BoundedCache<String, V> forStrings(final long maxBytes) {
+		return new BoundedCache<String, V>(maxBytes, (int) Math.min(
+			Integer.MAX_VALUE, Math.max(16, maxBytes / 1024)), 0,
+			new Weigher<String, V>() {
+				@Override
+				public long weigh(final String key, final V value) {
+					return 2L * (key.length() + (value instanceof CharSequence
+						? ((CharSequence) value).length() : key.length()));
+				}
+			});
+	}
+
+	public boolean isEnabled() {
+		return this.maxWeight > 0;
+	}
+
+	/**
+	 * @return the cached value or null
+	 */
+	public synchronized V get(final K key) {
+		this.sketch.increment(key);
+		Entry<V> entry = this.entries.get(key);
+		if (entry != null && this.ttl > 0
+			&& System.currentTimeMillis() - entry.createdAt >= this.ttl) {
+			this.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return entry.value;
+	}
+
+	public synchronized void put(final K key, final V value) {
+		long entryWeight = this.weigher == null ? 1 : this.weigher.weigh(key,
+			value);
+		if (entryWeight > this.maxWeight) {
+			return;
+		}
+		this.remove(key);
+		int frequency = this.sketch.frequency(key);
+		// the victims are only chosen, the new entry has to beat all of them
+		long needed = this.weight + entryWeight - this.maxWeight;
+		Iterator<Map.Entry<K, Entry<V>>> it = this.entries.entrySet().iterator();
+		while (needed > 0 && it.hasNext()) {
+			Map.Entry<K, Entry<V>> victim = it.next();
+			if (this.sketch.frequency(victim.getKey()) >= frequency) {
+				this.rejections++;
+				return;
+			}
+			needed -= victim.getValue().weight;
+		}
+		it = this.entries.entrySet().iterator();
+		while (this.weight + entryWeight > this.maxWeight && it.hasNext()) {
+			this.weight -= it.next().getValue().weight;
+			it.remove();
+			this.evictions++;
+		}
+		this.entries.put(key, new Entry<V>(value, entryWeight));
+		this.weight += entryWeight;
+	}
+
+	public synchronized void remove(final K key) {
+		Entry<V> entry = this.entries.remove(key);
+		if (entry != null) {
+			this.weight -= entry.weight;
+		}
+	}
+
+	/**
+	 * @return the number of dropped entries
+	 */
+	public synchronized int invalidate(final KeyFilter<K> filter) {
+		int result = 0;
+		for (Iterator<Map.Entry<K, Entry<V>>> it = this.entries.entrySet()
+			.iterator(); it.hasNext();) {
+			Map.Entry<K, Entry<V>> entry = it.next();
+			if (filter.matches(entry.getKey())) {
+				this.weight -= entry.getValue().weight;
+				it.remove();
+				result++;
+			}
+		}
+		return result;
+	}
+
+	public synchronized void clear() {
+		this.entries.clear();
+		this.weight = 0;
+	}
+
+	public synchronized Map<String, Long> getStatistics() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		result.put("entries", (long) this.entries.size());
+		result.put("weight", this.weight);
+		result.put("hits", this.hits);
+		result.put("misses", this.misses);
+		result.put("evictions", this.evictions);
+		result.put("rejections", this.rejections);
+		return result;
+	}
+}
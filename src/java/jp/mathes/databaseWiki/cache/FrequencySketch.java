@@ -0,0 +1,76 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.cache;
+
+/**
+ * Approximate access counts of keys in a count-min sketch with four hash
+ * functions. All counters are halved after a sample period so that old
+ * popularity fades out. Not thread-safe.
+ */
+class FrequencySketch {
+
+	private static final int[] SEEDS = { 0x97cb3127, 0xe7a2d6a5, 0x4a3c5bd1,
+		0x2f7e8a1b };
+	private static final int MAX_COUNT = 15;
+
+	private final int[][] counters;
+	private final int mask;
+	private final int samplePeriod;
+	private int additions = 0;
+
+	public FrequencySketch(final int expectedEntries) {
+		int width = Integer.highestOneBit(Math.max(128, 8 * expectedEntries) - 1) << 1;
+		this.counters = new int[FrequencySketch.SEEDS.length][width];
+		this.mask = width - 1;
+		this.samplePeriod = 10 * width;
+	}
+
+	private int index(final int hash, final int row) {
+		int h = (hash ^ FrequencySketch.SEEDS[row]) * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & this.mask;
+	}
+
+	public void increment(final Object key) {
+		int hash = key.hashCode();
+		for (int row = 0; row < this.counters.length; row++) {
+			int i = this.index(hash, row);
+			if (this.counters[row][i] < FrequencySketch.MAX_COUNT) {
+				this.counters[row][i]++;
+			}
+		}
+		if (++this.additions >= this.samplePeriod) {
+			this.age();
+		}
+	}
+
+	public int frequency(final Object key) {
+		int hash = key.hashCode();
+		int result = FrequencySketch.MAX_COUNT;
+		for (int row = 0; row < this.counters.length; row++) {
+			result = Math.min(result, this.counters[row][this.index(hash, row)]);
+		}
+		return result;
+	}
+
+	private void age() {
+		for (int[] row : this.counters) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] >>>= 1;
+			}
+		}
+		this.additions /= 2;
+	}
+}
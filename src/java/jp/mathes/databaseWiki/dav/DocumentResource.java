@@ -37,11 +37,7 @@ import com.bradmcevoy.http.exceptions.BadRequestException;
 import com.bradmcevoy.http.exceptions.ConflictException;
 import com.bradmcevoy.http.exceptions.NotAuthorizedException;
 
-import freemarker.cache.ClassTemplateLoader;
-import freemarker.ext.beans.BeansWrapper;
-import freemarker.template.Configuration;
 import freemarker.template.Template;
-import freemarker.template.TemplateHashModel;
 
 public class DocumentResource implements PropFindableResource, GetableResource,
 	DeletableResource {
@@ -143,25 +139,15 @@ public class DocumentResource implements PropFindableResource, GetableResource,
 	}
 
 	private String getContent() {
-		Configuration cfg = new Configuration();
-		cfg
-			.setTemplateLoader(new ClassTemplateLoader(this.getClass(), "templates"));
 		try {
 			Document document = DbwConfiguration
 				.getInstance()
 				.getBackend()
 				.getDocument(this.user, this.password, this.dbName, this.tableName,
 					this.name, true, null);
-			Template template = cfg.getTemplate("dav.ftl");
-			HashMap<String, Object> data = new HashMap<String, Object>();
-			BeansWrapper wrapper = BeansWrapper.getDefaultInstance();
-			TemplateHashModel enumModels = wrapper.getEnumModels();
-			TemplateHashModel fieldTypeStatic = (TemplateHashModel) enumModels
-				.get("jp.mathes.databaseWiki.db.FieldType");
-			TemplateHashModel fieldUsageStatic = (TemplateHashModel) enumModels
-				.get("jp.mathes.databaseWiki.db.FieldUsage");
-			data.put("FieldType", fieldTypeStatic);
-			data.put("FieldUsage", fieldUsageStatic);
+			Template template = DbwConfiguration.getInstance().getTemplate("dav.ftl");
+			HashMap<String, Object> data = new HashMap<String, Object>(
+				DbwConfiguration.getInstance().getEnumModels());
 			data.put("fields", document.getAllFields());
 			StringWriter sw = new StringWriter();
 			template.process(data, sw);
@@ -19,8 +19,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
@@ -109,13 +109,30 @@ public class TableResource implements PropFindableResource, CollectionResource,
 	@Override
 	public List<? extends Resource> getChildren() {
 		try {
-			List<String> documentNames = DbwConfiguration.getInstance().getBackend()
-				.getNames(this.user, this.password, this.dbName, this.name);
-			List<DocumentResource> documents = new LinkedList<DocumentResource>();
-			for (String documentName : documentNames) {
-				documents.add(new DocumentResource(this.dbName, this.name,
-					documentName, this.user, this.password));
+			DbwConfiguration configuration = DbwConfiguration.getInstance();
+			int pageSize = configuration.getListPageSize();
+			int max = configuration.getDavMaxChildren();
+			List<DocumentResource> documents = new ArrayList<DocumentResource>();
+			String after = null;
+			// page by page, so only one page of names is in memory besides the
+			// resources milton needs anyway; max <= 0 lists all documents
+			while (max <= 0 || documents.size() < max) {
+				int limit = max <= 0 ? pageSize : Math.min(pageSize,
+					max - documents.size());
+				List<String> documentNames = configuration.getBackend().getNames(
+					this.user, this.password, this.dbName, this.name, after, null, limit);
+				for (String documentName : documentNames) {
+					documents.add(new DocumentResource(this.dbName, this.name,
+						documentName, this.user, this.password));
+				}
+				if (documentNames.size() < limit) {
+					return documents;
+				}
+				after = documentNames.get(documentNames.size() - 1);
 			}
+			configuration.davLog(String.format(
+				"Listing of %s/%s truncated to %d documents.", this.dbName, this.name,
+				max));
 			return documents;
 		} catch (BackendException e) {
 			DbwConfiguration.getInstance().davLog(
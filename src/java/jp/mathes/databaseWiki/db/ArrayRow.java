@@ -0,0 +1,192 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import jp.mathes.databaseWiki.db.Backend.Row;
+
+/**
+ * Row holding its values in one array. The column names are kept once per
+ * result set in a shared {@link Columns} instance, getFields() and
+ * getFieldsByName() are read-only views on the array.
+ */
+public class ArrayRow implements Row {
+
+	/**
+	 * immutable column names of a result set and their positions
+	 */
+	public static class Columns {
+		private final List<String> names;
+		private final Map<String, Integer> indexes;
+
+		public Columns(final String... names) {
+			this.names = Collections.unmodifiableList(Arrays.asList(names.clone()));
+			Map<String, Integer> map = new HashMap<String, Integer>();
+			for (int i = 0; i < names.length; i++) {
+				// like a map filled column by column, the last duplicate wins
+				map.put(names[i], i);
+			}
+			this.indexes = Collections.unmodifiableMap(map);
+		}
+
+		public List<String> getNames() {
+			return this.names;
+		}
+
+		public int size() {
+			return this.names.size();
+		}
+
+		/**
+		 * @return the position of the column or -1
+		 */
+		public int indexOf(final String name) {
+			Integer index = this.indexes.get(name);
+			return index == null ? -1 : index;
+		}
+	}
+
+	private final Columns columns;
+	private final Object[] values;
+	private List<Object> fields = null;
+	private Map<String, Object> fieldsByName = null;
+
+	/**
+	 * @param values taken over without copying, one per column
+	 */
+	public ArrayRow(final Columns columns, final Object[] values) {
+		if (values.length != columns.size()) {
+			throw new IllegalArgumentException(String.format(
+				"%d values for %d columns", values.length, columns.size()));
+		}
+		this.columns = columns;
+		this.values = values;
+	}
+
+	public Columns getColumns() {
+		return this.columns;
+	}
+
+	public Object get(final int index) {
+		return this.values[index];
+	}
+
+	/**
+	 * @return the value or null if there is no such column
+	 */
+	public Object get(final String name) {
+		int index = this.columns.indexOf(name);
+		return index < 0 ? null : this.values[index];
+	}
+
+	@Override
+	public List<Object> getFields() {
+		if (this.fields == null) {
+			this.fields = Collections.unmodifiableList(Arrays.asList(this.values));
+		}
+		return this.fields;
+	}
+
+	@Override
+	public Map<String, Object> getFieldsByName() {
+		if (this.fieldsByName == null) {
+			this.fieldsByName = new FieldsByName();
+		}
+		return this.fieldsByName;
+	}
+
+	@Override
+	public String toString() {
+		return this.getFieldsByName().toString();
+	}
+
+	private class FieldsByName extends AbstractMap<String, Object> {
+
+		@Override
+		public Object get(final Object key) {
+			return key instanceof String ? ArrayRow.this.get((String) key) : null;
+		}
+
+		@Override
+		public boolean containsKey(final Object key) {
+			return key instanceof String
+				&& ArrayRow.this.columns.indexOf((String) key) >= 0;
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Object>>() {
+				@Override
+				public int size() {
+					return ArrayRow.this.columns.indexes.size();
+				}
+
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					return new EntryIterator();
+				}
+			};
+		}
+	}
+
+	/**
+	 * entries in column order, hidden duplicates skipped
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+		private int next = this.skip(0);
+
+		private int skip(final int from) {
+			int i = from;
+			List<String> names = ArrayRow.this.columns.names;
+			while (i < names.size()
+				&& ArrayRow.this.columns.indexOf(names.get(i)) != i) {
+				i++;
+			}
+			return i;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.next < ArrayRow.this.values.length;
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int index = this.next;
+			this.next = this.skip(index + 1);
+			return new AbstractMap.SimpleImmutableEntry<String, Object>(
+				ArrayRow.this.columns.names.get(index), ArrayRow.this.values[index]);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -15,6 +15,9 @@
 */
 package jp.mathes.databaseWiki.db;
 
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -26,6 +29,25 @@ public interface Backend {
 		Map<String, Object> getFieldsByName();
 	}
 
+	public static enum BulkFormat {
+		csv, tsv
+	}
+
+	/**
+	 * informed after every committed batch of an import
+	 */
+	public static interface ImportListener {
+		void committed(long rows);
+	}
+
+	/**
+	 * Rows of a query read on demand. Holds a database connection until it is
+	 * exhausted or closed, so it has to be closed in a finally block.
+	 */
+	public static interface RowIterator extends Iterator<Row> {
+		void close();
+	}
+
 	Document getDocument(String user, String password, String db, String table,
 		String name, boolean allowEmpty, Map<String, String[]> defaultFieldValues)
 		throws BackendException, DocumentNotFoundException;
@@ -34,6 +56,15 @@ public interface Backend {
 		String name, boolean allowEmpty) throws BackendException,
 		DocumentNotFoundException;
 
+	/**
+	 * reads several documents of one table at once
+	 *
+	 * @return the documents in the order of names, null for names without
+	 *         document
+	 */
+	Map<String, Document> getDocuments(String user, String password, String db,
+		String table, List<String> names) throws BackendException;
+
 	Document saveDocument(String user, String password, String db, String table,
 		String name, Document document) throws BackendException;
 
@@ -43,12 +74,49 @@ public interface Backend {
 	List<Row> executeQuery(String user, String password, String db, String query)
 		throws BackendException;
 
+	/**
+	 * like executeQuery, but the rows are fetched in chunks while iterating
+	 * instead of being read into memory at once
+	 */
+	RowIterator iterateQuery(String user, String password, String db,
+		String query) throws BackendException;
+
 	void executeUpdate(String user, String password, String db, String statement)
 		throws BackendException;
 
+	/**
+	 * writes all rows of the table, CSV with a header line
+	 *
+	 * @return the number of rows
+	 */
+	long exportTable(String user, String password, String db, String table,
+		BulkFormat format, Writer out) throws BackendException;
+
+	/**
+	 * adds the rows to the table, committing after every batch. A CSV header
+	 * line names the columns. If the import fails, the batches committed so far
+	 * stay in the table.
+	 *
+	 * @param listener may be null
+	 * @return the number of rows
+	 */
+	long importTable(String user, String password, String db, String table,
+		BulkFormat format, Reader in, ImportListener listener)
+		throws BackendException;
+
 	List<String> getTables(String user, String password, String db)
 		throws BackendException;
 
 	List<String> getNames(String user, String password, String db, String table)
 		throws BackendException;
+
+	/**
+	 * one page of the document names in ascending order
+	 *
+	 * @param after only names after this one, null to start with the first
+	 * @param prefix only names starting with this, null or empty for all
+	 */
+	List<String> getNames(String user, String password, String db,
+		String table, String after, String prefix, int limit)
+		throws BackendException;
 }
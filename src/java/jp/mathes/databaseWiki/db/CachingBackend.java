@@ -0,0 +1,453 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import jp.mathes.databaseWiki.cache.BoundedCache;
+import jp.mathes.databaseWiki.metrics.Metrics;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Backend decorator caching documents read through getDocument. Configure it
+ * as dbw.db.backend and the real backend as dbw.db.backend.cache.delegate.
+ * Entries are kept per user and password, so a document is only served to
+ * someone who has already been allowed to read it by the database. Writes
+ * through this backend drop the affected entries and are published on the
+ * {@link InvalidationBus} for the other nodes, writes by other means are only
+ * seen after dbw.db.backend.cache.ttl seconds unless the bus reports them.
+ */
+public class CachingBackend implements Backend, InvalidationBus.Listener,
+	InvalidationBus.Publisher, Warmable, Closeable {
+
+	private static class Key {
+		private final String user;
+		private final String password;
+		private final String db;
+		private final String table;
+		private final String name;
+
+		public Key(final String user, final String password, final String db,
+			final String table, final String name) {
+			this.user = user;
+			// no plain passwords in memory longer than necessary
+			this.password = password == null ? null : DigestUtils
+				.sha256Hex(password);
+			this.db = db;
+			this.table = table;
+			this.name = name;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((this.db.hashCode() * 31 + this.table.hashCode()) * 31 + String
+				.valueOf(this.name).hashCode()) * 31 + String.valueOf(this.user)
+				.hashCode();
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.db.equals(other.db) && this.table.equals(other.table)
+				&& CachingBackend.equal(this.name, other.name)
+				&& CachingBackend.equal(this.user, other.user)
+				&& CachingBackend.equal(this.password, other.password);
+		}
+	}
+
+	private Backend delegate;
+	private BoundedCache<Key, Document> cache;
+	private volatile InvalidationBus invalidationBus;
+	/** counts the invalidations, guarded by the cache */
+	private long generation = 0;
+
+	public CachingBackend() {
+		InputStream resourceStream = null;
+		try {
+			Properties props = new Properties();
+			resourceStream = this.getClass().getResourceAsStream("/dbw.properties");
+			props.load(resourceStream);
+			this.delegate = (Backend) Class.forName(
+				props.getProperty("dbw.db.backend.cache.delegate")).getConstructor()
+				.newInstance();
+			this.cache = new BoundedCache<Key, Document>(Integer.parseInt(props
+				.getProperty("dbw.db.backend.cache.size", "1000")),
+				Integer.parseInt(props.getProperty("dbw.db.backend.cache.ttl", "300")));
+		} catch (InstantiationException e) {
+			e.printStackTrace();
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+		} catch (NoSuchMethodException e) {
+			e.printStackTrace();
+		} catch (InvocationTargetException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			IOUtils.closeQuietly(resourceStream);
+		}
+		Metrics.getInstance().addSource("cache", new Metrics.Source() {
+			@Override
+			public Map<String, Long> getStatistics() {
+				return CachingBackend.this.getStatistics();
+			}
+		});
+	}
+
+	public CachingBackend(final Backend delegate, final int size, final int ttl) {
+		this.delegate = delegate;
+		this.cache = new BoundedCache<Key, Document>(size, ttl);
+	}
+
+	private static boolean equal(final String a, final String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * the first part of a database name, "db.schema" and "db" may denote the
+	 * same tables
+	 */
+	private static String getDatabaseRoot(final String db) {
+		int dot = db.indexOf('.');
+		return dot < 0 ? db : db.substring(0, dot);
+	}
+
+	/**
+	 * the schema from schema.table or db.schema, "public" otherwise like in
+	 * the PostgreSQL backend
+	 */
+	private static String getSchema(final String db, final String table) {
+		if (table.indexOf('.') >= 0) {
+			return table.substring(0, table.indexOf('.'));
+		} else if (db.indexOf('.') >= 0) {
+			return db.substring(db.indexOf('.') + 1);
+		}
+		return "public";
+	}
+
+	private static String getPlainTable(final String table) {
+		int dot = table.indexOf('.');
+		return dot < 0 ? table : table.substring(dot + 1);
+	}
+
+	public Backend getDelegate() {
+		return this.delegate;
+	}
+
+	public Map<String, Long> getStatistics() {
+		return this.cache.getStatistics();
+	}
+
+	/**
+	 * drops all cached versions of a document, for all users and all spellings
+	 * of the database and table name
+	 */
+	public void invalidate(final String db, final String table,
+		final String name) {
+		this.invalidate(db, CachingBackend.getSchema(db, table),
+			CachingBackend.getPlainTable(table), name);
+	}
+
+	public void invalidate(final String db) {
+		final String root = CachingBackend.getDatabaseRoot(db);
+		this.drop(new BoundedCache.KeyFilter<Key>() {
+			@Override
+			public boolean matches(final Key key) {
+				return CachingBackend.getDatabaseRoot(key.db).equals(root);
+			}
+		});
+	}
+
+	public void invalidateAll() {
+		synchronized (this.cache) {
+			this.generation++;
+			this.cache.clear();
+		}
+	}
+
+	private void drop(final BoundedCache.KeyFilter<Key> filter) {
+		synchronized (this.cache) {
+			this.generation++;
+			this.cache.invalidate(filter);
+		}
+	}
+
+	private long getGeneration() {
+		synchronized (this.cache) {
+			return this.generation;
+		}
+	}
+
+	/**
+	 * caches a document read since generation unless it may have been changed
+	 * in the meantime, then it could be older than the invalidation
+	 */
+	private void put(final Key key, final Document document,
+		final long generation) {
+		synchronized (this.cache) {
+			if (this.generation == generation) {
+				this.cache.put(key, document);
+			}
+		}
+	}
+
+	/**
+	 * changes announced on the {@link InvalidationBus}, passed on to the
+	 * delegate as it may have caches of its own
+	 */
+	@Override
+	public void invalidate(final String db, final String schema,
+		final String table, final String name) {
+		if (table == null) {
+			this.invalidate(db);
+		} else {
+			final String root = CachingBackend.getDatabaseRoot(db);
+			this.drop(new BoundedCache.KeyFilter<Key>() {
+				@Override
+				public boolean matches(final Key key) {
+					return (name == null || CachingBackend.equal(key.name, name))
+						&& CachingBackend.getPlainTable(key.table).equals(table)
+						&& CachingBackend.getDatabaseRoot(key.db).equals(root)
+						&& (schema == null || CachingBackend.getSchema(key.db, key.table)
+							.equals(schema));
+				}
+			});
+		}
+		if (this.delegate instanceof InvalidationBus.Listener) {
+			((InvalidationBus.Listener) this.delegate).invalidate(db, schema, table,
+				name);
+		}
+	}
+
+	@Override
+	public void setInvalidationBus(final InvalidationBus bus) {
+		this.invalidationBus = bus;
+	}
+
+	/**
+	 * announces a write to the other nodes, table and name may be null
+	 */
+	private void publish(final String db, final String table,
+		final String name) {
+		InvalidationBus bus = this.invalidationBus;
+		if (bus == null) {
+			return;
+		}
+		if (table == null) {
+			bus.publish(CachingBackend.getDatabaseRoot(db), null, null, null);
+		} else {
+			bus.publish(CachingBackend.getDatabaseRoot(db),
+				CachingBackend.getSchema(db, table),
+				CachingBackend.getPlainTable(table), name);
+		}
+	}
+
+	@Override
+	public void warmUp(final String user, final String password,
+		final String db) throws BackendException {
+		if (this.delegate instanceof Warmable) {
+			((Warmable) this.delegate).warmUp(user, password, db);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.delegate instanceof Closeable) {
+			((Closeable) this.delegate).close();
+		}
+	}
+
+	@Override
+	public Document getDocument(final String user, final String password,
+		final String db, final String table, final String name,
+		final boolean allowEmpty, final Map<String, String[]> defaultFieldValues)
+		throws BackendException, DocumentNotFoundException {
+		if (!this.cache.isEnabled()) {
+			return this.delegate.getDocument(user, password, db, table, name,
+				allowEmpty, defaultFieldValues);
+		}
+		Key key = new Key(user, password, db, table, name);
+		Document cached = this.cache.get(key);
+		if (cached != null) {
+			return cached.copy();
+		}
+		long generation = this.getGeneration();
+		Document document;
+		try {
+			// only existing documents are cached, empty ones carry request defaults
+			document = this.delegate.getDocument(user, password, db, table, name,
+				false, null);
+		} catch (DocumentNotFoundException e) {
+			if (!allowEmpty) {
+				throw e;
+			}
+			return this.delegate.getDocument(user, password, db, table, name, true,
+				defaultFieldValues);
+		}
+		this.put(key, document.copy(), generation);
+		return document;
+	}
+
+	@Override
+	public Document getDocument(final String user, final String password,
+		final String db, final String table, final String name,
+		final boolean allowEmpty) throws BackendException,
+		DocumentNotFoundException {
+		return this.getDocument(user, password, db, table, name, allowEmpty, null);
+	}
+
+	/**
+	 * serves the cached documents and reads the others with one call to the
+	 * delegate
+	 */
+	@Override
+	public Map<String, Document> getDocuments(final String user,
+		final String password, final String db, final String table,
+		final List<String> names) throws BackendException {
+		if (!this.cache.isEnabled()) {
+			return this.delegate.getDocuments(user, password, db, table, names);
+		}
+		Map<String, Document> result = new LinkedHashMap<String, Document>();
+		List<String> missing = new ArrayList<String>();
+		for (String name : names) {
+			Document cached = this.cache.get(new Key(user, password, db, table, name));
+			result.put(name, cached == null ? null : cached.copy());
+			if (cached == null) {
+				missing.add(name);
+			}
+		}
+		if (!missing.isEmpty()) {
+			long generation = this.getGeneration();
+			Map<String, Document> loaded = this.delegate.getDocuments(user,
+				password, db, table, missing);
+			for (Map.Entry<String, Document> entry : loaded.entrySet()) {
+				if (entry.getValue() != null) {
+					this.put(new Key(user, password, db, table, entry.getKey()),
+						entry.getValue().copy(), generation);
+					result.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Document saveDocument(final String user, final String password,
+		final String db, final String table, final String name,
+		final Document document) throws BackendException {
+		try {
+			return this.delegate.saveDocument(user, password, db, table, name,
+				document);
+		} finally {
+			this.invalidate(db, table, name);
+			this.publish(db, table, name);
+		}
+	}
+
+	@Override
+	public void deleteDocument(final String user, final String password,
+		final String db, final String table, final String name)
+		throws BackendException {
+		try {
+			this.delegate.deleteDocument(user, password, db, table, name);
+		} finally {
+			this.invalidate(db, table, name);
+			this.publish(db, table, name);
+		}
+	}
+
+	@Override
+	public List<Row> executeQuery(final String user, final String password,
+		final String db, final String query) throws BackendException {
+		return this.delegate.executeQuery(user, password, db, query);
+	}
+
+	@Override
+	public RowIterator iterateQuery(final String user, final String password,
+		final String db, final String query) throws BackendException {
+		return this.delegate.iterateQuery(user, password, db, query);
+	}
+
+	@Override
+	public void executeUpdate(final String user, final String password,
+		final String db, final String statement) throws BackendException {
+		try {
+			this.delegate.executeUpdate(user, password, db, statement);
+		} finally {
+			// arbitrary SQL, anything in the database may have changed
+			this.invalidate(db);
+			this.publish(db, null, null);
+		}
+	}
+
+	@Override
+	public long exportTable(final String user, final String password,
+		final String db, final String table, final BulkFormat format,
+		final Writer out) throws BackendException {
+		return this.delegate.exportTable(user, password, db, table, format, out);
+	}
+
+	@Override
+	public long importTable(final String user, final String password,
+		final String db, final String table, final BulkFormat format,
+		final Reader in, final ImportListener listener) throws BackendException {
+		try {
+			return this.delegate.importTable(user, password, db, table, format, in,
+				listener);
+		} finally {
+			this.invalidate(db, CachingBackend.getSchema(db, table),
+				CachingBackend.getPlainTable(table), null);
+			this.publish(db, table, null);
+		}
+	}
+
+	@Override
+	public List<String> getTables(final String user, final String password,
+		final String db) throws BackendException {
+		return this.delegate.getTables(user, password, db);
+	}
+
+	@Override
+	public List<String> getNames(final String user, final String password,
+		final String db, final String table) throws BackendException {
+		return this.delegate.getNames(user, password, db, table);
+	}
+
+	@Override
+	public List<String> getNames(final String user, final String password,
+		final String db, final String table, final String after,
+		final String prefix, final int limit) throws BackendException {
+		return this.delegate.getNames(user, password, db, table, after, prefix,
+			limit);
+	}
+}
@@ -26,4 +26,10 @@ public interface Document {
 	String getTable();
 
 	String getName();
+
+	/**
+	 * @return an independent copy, changing its fields does not affect this
+	 *         document
+	 */
+	Document copy();
 }
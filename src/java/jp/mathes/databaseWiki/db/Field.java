@@ -29,4 +29,6 @@ public interface Field<T> {
 	void setValue(T value);
 
 	List<T> getAllowedValues();
+
+	Field<T> copy();
 }
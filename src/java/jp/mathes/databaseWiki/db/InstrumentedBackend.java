@@ -0,0 +1,406 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import jp.mathes.databaseWiki.metrics.Metrics;
+import jp.mathes.databaseWiki.metrics.OperationMetrics;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Backend decorator recording latency, errors and rows of every call in
+ * {@link Metrics}, once per operation and once per operation and table.
+ * Configure it as dbw.db.backend and the real backend (or the
+ * {@link CachingBackend}) as dbw.db.backend.instrumented.delegate.
+ */
+public class InstrumentedBackend implements Backend, InvalidationBus.Listener,
+	InvalidationBus.Publisher, Warmable, Closeable {
+
+	private class InstrumentedRowIterator implements RowIterator {
+		private final RowIterator rows;
+		private final OperationMetrics[] metrics;
+		private long count = 0;
+		private boolean closed = false;
+
+		public InstrumentedRowIterator(final RowIterator rows,
+			final OperationMetrics[] metrics) {
+			this.rows = rows;
+			this.metrics = metrics;
+		}
+
+		@Override
+		public boolean hasNext() {
+			try {
+				return this.rows.hasNext();
+			} catch (RuntimeException e) {
+				this.failed();
+				throw e;
+			}
+		}
+
+		@Override
+		public Row next() {
+			try {
+				Row row = this.rows.next();
+				this.count++;
+				return row;
+			} catch (RuntimeException e) {
+				this.failed();
+				throw e;
+			}
+		}
+
+		private void failed() {
+			for (OperationMetrics operation : this.metrics) {
+				operation.addError();
+			}
+		}
+
+		@Override
+		public void remove() {
+			this.rows.remove();
+		}
+
+		@Override
+		public void close() {
+			this.rows.close();
+			if (!this.closed) {
+				this.closed = true;
+				for (OperationMetrics operation : this.metrics) {
+					operation.addRows(this.count);
+				}
+			}
+		}
+	}
+
+	private Backend delegate;
+	private final Metrics metrics = Metrics.getInstance();
+
+	public InstrumentedBackend() {
+		InputStream resourceStream = null;
+		try {
+			Properties props = new Properties();
+			resourceStream = this.getClass().getResourceAsStream("/dbw.properties");
+			props.load(resourceStream);
+			this.delegate = (Backend) Class.forName(
+				props.getProperty("dbw.db.backend.instrumented.delegate"))
+				.getConstructor().newInstance();
+		} catch (InstantiationException e) {
+			e.printStackTrace();
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+		} catch (NoSuchMethodException e) {
+			e.printStackTrace();
+		} catch (InvocationTargetException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			IOUtils.closeQuietly(resourceStream);
+		}
+	}
+
+	public InstrumentedBackend(final Backend delegate) {
+		this.delegate = delegate;
+	}
+
+	public Backend getDelegate() {
+		return this.delegate;
+	}
+
+	/**
+	 * @param create false to only use metrics of the table which already exist,
+	 *          so that table names of failed calls, e.g. taken from a mistyped
+	 *          URL, do not add metrics
+	 */
+	private OperationMetrics[] getMetrics(final String operation,
+		final String db, final String table, final boolean create) {
+		String name = "backend." + operation;
+		OperationMetrics all = this.metrics.getOperation(name, null);
+		if (table == null) {
+			return new OperationMetrics[] { all };
+		}
+		OperationMetrics perTable = create ? this.metrics.getOperation(name, db
+			+ "/" + table) : this.metrics.findOperation(name, db + "/" + table);
+		return perTable == null ? new OperationMetrics[] { all }
+			: new OperationMetrics[] { all, perTable };
+	}
+
+	private void record(final String operation, final String db,
+		final String table, final long start, final boolean failed,
+		final long rows) {
+		for (OperationMetrics metrics : this.getMetrics(operation, db, table,
+			!failed)) {
+			metrics.record(start, failed);
+			metrics.addRows(rows);
+		}
+	}
+
+	@Override
+	public void invalidate(final String db, final String schema,
+		final String table, final String name) {
+		if (this.delegate instanceof InvalidationBus.Listener) {
+			((InvalidationBus.Listener) this.delegate).invalidate(db, schema, table,
+				name);
+		}
+	}
+
+	@Override
+	public void setInvalidationBus(final InvalidationBus bus) {
+		if (this.delegate instanceof InvalidationBus.Publisher) {
+			((InvalidationBus.Publisher) this.delegate).setInvalidationBus(bus);
+		}
+	}
+
+	@Override
+	public void warmUp(final String user, final String password,
+		final String db) throws BackendException {
+		if (this.delegate instanceof Warmable) {
+			((Warmable) this.delegate).warmUp(user, password, db);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.delegate instanceof Closeable) {
+			((Closeable) this.delegate).close();
+		}
+	}
+
+	@Override
+	public Document getDocument(final String user, final String password,
+		final String db, final String table, final String name,
+		final boolean allowEmpty, final Map<String, String[]> defaultFieldValues)
+		throws BackendException, DocumentNotFoundException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Document document = this.delegate.getDocument(user, password, db, table,
+				name, allowEmpty, defaultFieldValues);
+			failed = false;
+			return document;
+		} catch (DocumentNotFoundException e) {
+			// an answer, not a failure
+			failed = false;
+			throw e;
+		} finally {
+			this.record("getDocument", db, table, start, failed, failed ? 0 : 1);
+		}
+	}
+
+	@Override
+	public Document getDocument(final String user, final String password,
+		final String db, final String table, final String name,
+		final boolean allowEmpty) throws BackendException,
+		DocumentNotFoundException {
+		return this.getDocument(user, password, db, table, name, allowEmpty, null);
+	}
+
+	@Override
+	public Map<String, Document> getDocuments(final String user,
+		final String password, final String db, final String table,
+		final List<String> names) throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		long rows = 0;
+		try {
+			Map<String, Document> documents = this.delegate.getDocuments(user,
+				password, db, table, names);
+			for (Document document : documents.values()) {
+				if (document != null) {
+					rows++;
+				}
+			}
+			failed = false;
+			return documents;
+		} finally {
+			this.record("getDocuments", db, table, start, failed, rows);
+		}
+	}
+
+	@Override
+	public Document saveDocument(final String user, final String password,
+		final String db, final String table, final String name,
+		final Document document) throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Document saved = this.delegate.saveDocument(user, password, db, table,
+				name, document);
+			failed = false;
+			return saved;
+		} finally {
+			this.record("saveDocument", db, table, start, failed, failed ? 0 : 1);
+		}
+	}
+
+	@Override
+	public void deleteDocument(final String user, final String password,
+		final String db, final String table, final String name)
+		throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			this.delegate.deleteDocument(user, password, db, table, name);
+			failed = false;
+		} finally {
+			this.record("deleteDocument", db, table, start, failed, failed ? 0 : 1);
+		}
+	}
+
+	@Override
+	public List<Row> executeQuery(final String user, final String password,
+		final String db, final String query) throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		long rows = 0;
+		try {
+			List<Row> result = this.delegate.executeQuery(user, password, db, query);
+			rows = result.size();
+			failed = false;
+			return result;
+		} finally {
+			this.record("executeQuery", db, null, start, failed, rows);
+		}
+	}
+
+	/**
+	 * records the time until the first rows are there, the rows are counted
+	 * when the iterator is closed
+	 */
+	@Override
+	public RowIterator iterateQuery(final String user, final String password,
+		final String db, final String query) throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			RowIterator rows = this.delegate.iterateQuery(user, password, db, query);
+			failed = false;
+			return new InstrumentedRowIterator(rows, this.getMetrics(
+				"iterateQuery", db, null, true));
+		} finally {
+			this.record("iterateQuery", db, null, start, failed, 0);
+		}
+	}
+
+	@Override
+	public void executeUpdate(final String user, final String password,
+		final String db, final String statement) throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			this.delegate.executeUpdate(user, password, db, statement);
+			failed = false;
+		} finally {
+			this.record("executeUpdate", db, null, start, failed, 0);
+		}
+	}
+
+	@Override
+	public long exportTable(final String user, final String password,
+		final String db, final String table, final BulkFormat format,
+		final Writer out) throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		long rows = 0;
+		try {
+			rows = this.delegate.exportTable(user, password, db, table, format, out);
+			failed = false;
+			return rows;
+		} finally {
+			this.record("exportTable", db, table, start, failed, rows);
+		}
+	}
+
+	@Override
+	public long importTable(final String user, final String password,
+		final String db, final String table, final BulkFormat format,
+		final Reader in, final ImportListener listener) throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		long rows = 0;
+		try {
+			rows = this.delegate.importTable(user, password, db, table, format, in,
+				listener);
+			failed = false;
+			return rows;
+		} finally {
+			this.record("importTable", db, table, start, failed, rows);
+		}
+	}
+
+	@Override
+	public List<String> getTables(final String user, final String password,
+		final String db) throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		long rows = 0;
+		try {
+			List<String> tables = this.delegate.getTables(user, password, db);
+			rows = tables.size();
+			failed = false;
+			return tables;
+		} finally {
+			this.record("getTables", db, null, start, failed, rows);
+		}
+	}
+
+	@Override
+	public List<String> getNames(final String user, final String password,
+		final String db, final String table) throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		long rows = 0;
+		try {
+			List<String> names = this.delegate.getNames(user, password, db, table);
+			rows = names.size();
+			failed = false;
+			return names;
+		} finally {
+			this.record("getNames", db, table, start, failed, rows);
+		}
+	}
+
+	@Override
+	public List<String> getNames(final String user, final String password,
+		final String db, final String table, final String after,
+		final String prefix, final int limit) throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		long rows = 0;
+		try {
+			List<String> names = this.delegate.getNames(user, password, db, table,
+				after, prefix, limit);
+			rows = names.size();
+			failed = false;
+			return names;
+		} finally {
+			this.record("getNames", db, table, start, failed, rows);
+		}
+	}
+}
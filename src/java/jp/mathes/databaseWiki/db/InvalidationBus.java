@@ -0,0 +1,53 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db;
+
+/**
+ * Distributes the information that documents changed to the caches of this
+ * node. Implementations may receive the changes from elsewhere, e.g. other
+ * nodes or direct writes to the database.
+ */
+public interface InvalidationBus {
+
+	public static interface Listener {
+		/**
+		 * @param table the plain table name or null if anything in the database
+		 *          may have changed
+		 * @param name the document name or null if anything in the table may have
+		 *          changed
+		 */
+		void invalidate(String db, String schema, String table, String name);
+	}
+
+	/**
+	 * backends announcing their writes, so that the caches of other nodes drop
+	 * what was written
+	 */
+	public static interface Publisher {
+		void setInvalidationBus(InvalidationBus bus);
+	}
+
+	void addListener(Listener listener);
+
+	void removeListener(Listener listener);
+
+	/**
+	 * announces a change to all listeners that can be reached
+	 */
+	void publish(String db, String schema, String table, String name);
+
+	void close();
+}
@@ -0,0 +1,64 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Bus inside one JVM, publish calls the listeners directly. Used when there
+ * is only one node and as base for buses receiving remote changes.
+ */
+public class LocalInvalidationBus implements InvalidationBus {
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	@Override
+	public void addListener(final Listener listener) {
+		this.listeners.add(listener);
+	}
+
+	@Override
+	public void removeListener(final Listener listener) {
+		this.listeners.remove(listener);
+	}
+
+	@Override
+	public void publish(final String db, final String schema,
+		final String table, final String name) {
+		this.dispatch(db, schema, table, name);
+	}
+
+	/**
+	 * calls all listeners of this node, a failing listener does not keep the
+	 * others from being called
+	 */
+	protected void dispatch(final String db, final String schema,
+		final String table, final String name) {
+		for (Listener listener : this.listeners) {
+			try {
+				listener.invalidate(db, schema, table, name);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		this.listeners.clear();
+	}
+}
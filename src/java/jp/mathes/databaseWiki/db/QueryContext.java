@@ -0,0 +1,176 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Limits and cancellation of the queries run by one thread, usually for one
+ * HTTP request. Backends register running statements so that {@link #cancel()}
+ * can abort them from another thread. Limits of 0 leave the backend defaults
+ * in place. If the context is shared, backends may keep resources like a
+ * connection for all queries of the context, they are released on
+ * {@link #exit()}.
+ */
+public class QueryContext {
+
+	public static interface Cancellable {
+		void cancel();
+	}
+
+	public static interface Resource {
+		void release();
+	}
+
+	private static final ThreadLocal<QueryContext> CURRENT = new ThreadLocal<QueryContext>();
+
+	private final Set<Cancellable> running = Collections
+		.synchronizedSet(new HashSet<Cancellable>());
+	private volatile boolean cancelled = false;
+	private int timeout = 0;
+	private int maxRows = 0;
+	private long maxBytes = 0;
+	private boolean shared = false;
+	private final Map<String, Resource> resources = new LinkedHashMap<String, Resource>();
+
+	/**
+	 * @return the context of this thread or null
+	 */
+	public static QueryContext current() {
+		return QueryContext.CURRENT.get();
+	}
+
+	/**
+	 * starts a new context for this thread, has to be ended with {@link #exit()}
+	 */
+	public static QueryContext enter() {
+		QueryContext context = new QueryContext();
+		QueryContext.CURRENT.set(context);
+		return context;
+	}
+
+	/**
+	 * runs the queries of this thread in a context owned by another thread,
+	 * has to be ended with {@link #detach()}
+	 */
+	public static void attach(final QueryContext context) {
+		QueryContext.CURRENT.set(context);
+	}
+
+	/**
+	 * unbinds the context from this thread without ending it
+	 */
+	public static void detach() {
+		QueryContext.CURRENT.remove();
+	}
+
+	/**
+	 * ends the context of this thread, queries still running are cancelled and
+	 * the resources released
+	 */
+	public static void exit() {
+		QueryContext context = QueryContext.CURRENT.get();
+		QueryContext.CURRENT.remove();
+		if (context == null) {
+			return;
+		}
+		if (!context.running.isEmpty()) {
+			context.cancel();
+		}
+		for (Resource resource : context.resources.values()) {
+			try {
+				resource.release();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		context.resources.clear();
+	}
+
+	public void register(final Cancellable cancellable) {
+		this.running.add(cancellable);
+		if (this.cancelled) {
+			cancellable.cancel();
+		}
+	}
+
+	public void unregister(final Cancellable cancellable) {
+		this.running.remove(cancellable);
+	}
+
+	/**
+	 * cancels the running queries, queries started later are cancelled right
+	 * away
+	 */
+	public void cancel() {
+		this.cancelled = true;
+		Cancellable[] toCancel;
+		synchronized (this.running) {
+			toCancel = this.running.toArray(new Cancellable[this.running.size()]);
+		}
+		for (Cancellable cancellable : toCancel) {
+			cancellable.cancel();
+		}
+	}
+
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	/** seconds */
+	public int getTimeout() {
+		return this.timeout;
+	}
+
+	public int getMaxRows() {
+		return this.maxRows;
+	}
+
+	/** estimated size of all values of a result */
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	public boolean isShared() {
+		return this.shared;
+	}
+
+	public void setShared(final boolean shared) {
+		this.shared = shared;
+	}
+
+	public Resource getResource(final String key) {
+		return this.resources.get(key);
+	}
+
+	/**
+	 * @param resource released when the context ends
+	 */
+	public void putResource(final String key, final Resource resource) {
+		this.resources.put(key, resource);
+	}
+
+	public void setLimits(final int timeout, final int maxRows,
+		final long maxBytes) {
+		this.timeout = timeout;
+		this.maxRows = maxRows;
+		this.maxBytes = maxBytes;
+	}
+}
@@ -0,0 +1,657 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db.embedded;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jp.mathes.databaseWiki.db.ArrayRow;
+import jp.mathes.databaseWiki.db.Backend;
+import jp.mathes.databaseWiki.db.BackendException;
+import jp.mathes.databaseWiki.db.Document;
+import jp.mathes.databaseWiki.db.DocumentNotFoundException;
+import jp.mathes.databaseWiki.db.Field;
+import jp.mathes.databaseWiki.db.FieldType;
+import jp.mathes.databaseWiki.db.FieldUsage;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Backend keeping its tables in memory, for benchmarks, tests and small
+ * single node wikis. The tables are defined in dbw.properties, every write is
+ * appended to a log file which is replayed on startup. Queries support
+ * "select columns from table [where column op value] [order by column
+ * [asc|desc]] [limit n]", updates through SQL are not supported.
+ */
+public class EmbeddedBackend implements Backend, Closeable {
+
+	private static final Pattern SELECT = Pattern
+		.compile(
+			"\\s*select\\s+(.+?)\\s+from\\s+\"?([\\w.]+)\"?"
+				+ "(?:\\s+where\\s+\"?(\\w+)\"?\\s*(=|<>|!=|<=|>=|<|>|like)\\s*('(?:[^']|'')*'|-?\\d+(?:\\.\\d+)?))?"
+				+ "(?:\\s+order\\s+by\\s+\"?(\\w+)\"?(?:\\s+(asc|desc))?)?"
+				+ "(?:\\s+limit\\s+(\\d+))?\\s*;?\\s*", Pattern.CASE_INSENSITIVE
+				| Pattern.DOTALL);
+
+	private final Map<String, Map<String, EmbeddedTable>> databases = new TreeMap<String, Map<String, EmbeddedTable>>();
+	private final Map<String, String> users = new HashMap<String, String>();
+	private File logFile;
+	private Writer log;
+	private boolean sync;
+	private FileOutputStream logStream;
+
+	public EmbeddedBackend() {
+		InputStream resourceAsStream = null;
+		try {
+			Properties props = new Properties();
+			resourceAsStream = this.getClass().getResourceAsStream("/dbw.properties");
+			props.load(resourceAsStream);
+			this.init(props);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			IOUtils.closeQuietly(resourceAsStream);
+		}
+	}
+
+	public EmbeddedBackend(final Properties props) throws IOException {
+		this.init(props);
+	}
+
+	private void init(final Properties props) throws IOException {
+		for (String tableName : StringUtils.split(
+			props.getProperty("dbw.db.backend.embedded.tables", ""), ",")) {
+			tableName = tableName.trim();
+			String definition = props.getProperty("dbw.db.backend.embedded.table."
+				+ tableName);
+			if (StringUtils.isEmpty(tableName) || definition == null) {
+				continue;
+			}
+			String db = StringUtils.substringBefore(tableName, ".");
+			String table = StringUtils.substringAfter(tableName, ".");
+			if (!this.databases.containsKey(db)) {
+				this.databases.put(db, new TreeMap<String, EmbeddedTable>());
+			}
+			this.databases.get(db).put(table, new EmbeddedTable(table, definition));
+		}
+		for (String user : StringUtils.split(
+			props.getProperty("dbw.db.backend.embedded.users", ""), ",")) {
+			this.users.put(StringUtils.substringBefore(user.trim(), ":"),
+				StringUtils.substringAfter(user.trim(), ":"));
+		}
+		this.sync = Boolean.parseBoolean(props.getProperty(
+			"dbw.db.backend.embedded.sync", "false"));
+		String fileName = props.getProperty("dbw.db.backend.embedded.file");
+		if (!StringUtils.isEmpty(fileName)) {
+			this.logFile = new File(fileName);
+			this.replay();
+			this.logStream = new FileOutputStream(this.logFile, true);
+			this.log = new BufferedWriter(new OutputStreamWriter(this.logStream,
+				"UTF-8"));
+		}
+	}
+
+	private void authenticate(final String user, final String password)
+		throws BackendException {
+		// without configured users everybody may read and write
+		if (!this.users.isEmpty()
+			&& (user == null || !StringUtils.equals(this.users.get(user), password))) {
+			throw new BackendException(String.format(
+				"Authentication of user '%s' failed.", user));
+		}
+	}
+
+	private EmbeddedTable getTable(final String db, final String table)
+		throws BackendException {
+		Map<String, EmbeddedTable> tables = this.databases.get(StringUtils
+			.substringBefore(db, "."));
+		// schema.table is accepted like in the PostgreSQL backend
+		String plainTable = table.contains(".") ? StringUtils.substringAfter(
+			table, ".") : table;
+		EmbeddedTable result = tables == null ? null : tables.get(plainTable);
+		if (result == null) {
+			throw new BackendException(String.format("There is no table '%s' in '%s'.",
+				table, db));
+		}
+		return result;
+	}
+
+	private static String escape(final String value) {
+		if (value == null) {
+			return "\\N";
+		}
+		return value.replace("\\", "\\\\").replace("\t", "\\t")
+			.replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	private static String unescape(final String value) {
+		if ("\\N".equals(value)) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				char next = value.charAt(++i);
+				sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r'
+					: next);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * reads the log written by earlier runs. A damaged last line, e.g. from a
+	 * crash while writing, is ignored.
+	 */
+	private void replay() throws IOException {
+		if (!this.logFile.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+				this.logFile), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", -1);
+				if (parts.length < 4) {
+					continue;
+				}
+				try {
+					EmbeddedTable table = this.getTable(parts[1], parts[2]);
+					String name = EmbeddedBackend.unescape(parts[3]);
+					if ("del".equals(parts[0])) {
+						table.remove(name);
+					} else if ("put".equals(parts[0])
+						&& parts.length == 3 + table.getColumns().size()) {
+						Object[] values = new Object[table.getColumns().size()];
+						for (int i = 0; i < values.length; i++) {
+							values[i] = table.parse(i, EmbeddedBackend.unescape(parts[3 + i]));
+						}
+						table.put(name, values);
+					}
+				} catch (BackendException e) {
+					// table no longer configured
+				} catch (ParseException e) {
+					e.printStackTrace();
+				} catch (NumberFormatException e) {
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+	}
+
+	private void append(final String operation, final String db,
+		final EmbeddedTable table, final String name, final Object[] values)
+		throws BackendException {
+		if (this.log == null) {
+			if (this.logFile != null) {
+				throw new BackendException("The embedded backend has been closed.");
+			}
+			return;
+		}
+		StringBuilder line = new StringBuilder(operation).append('\t')
+			.append(EmbeddedBackend.escape(StringUtils.substringBefore(db, ".")))
+			.append('\t').append(EmbeddedBackend.escape(table.getName()));
+		if (values == null) {
+			line.append('\t').append(EmbeddedBackend.escape(name));
+		} else {
+			for (int i = 0; i < values.length; i++) {
+				line.append('\t').append(
+					EmbeddedBackend.escape(table.format(i, values[i])));
+			}
+		}
+		try {
+			this.log.write(line.append('\n').toString());
+			this.log.flush();
+			if (this.sync) {
+				this.logStream.getFD().sync();
+			}
+		} catch (IOException e) {
+			throw new BackendException(e);
+		}
+	}
+
+	private EmbeddedDocument createDocument(final String db,
+		final EmbeddedTable table, final String name, final Object[] values) {
+		EmbeddedDocument doc = new EmbeddedDocument(db, table.getName(), name);
+		List<String> columns = table.getColumns().getNames();
+		for (int i = 0; i < columns.size(); i++) {
+			String column = columns.get(i);
+			FieldUsage usage = "version".equals(column) ? FieldUsage.hidden
+				: FieldUsage.normal;
+			Object value = i == 0 ? name : values == null ? null : values[i];
+			doc.addField(column, new EmbeddedField<Object>(table.getType(i), usage,
+				column, value));
+		}
+		return doc;
+	}
+
+	@Override
+	public Document getDocument(final String user, final String password,
+		final String db, final String table, final String name,
+		final boolean allowEmpty, final Map<String, String[]> defaultFieldValues)
+		throws BackendException, DocumentNotFoundException {
+		this.authenticate(user, password);
+		EmbeddedTable embeddedTable = this.getTable(db, table);
+		Object[] values = embeddedTable.get(name);
+		if (values != null) {
+			return this.createDocument(db, embeddedTable, name, values);
+		}
+		if (!allowEmpty) {
+			throw new DocumentNotFoundException(String.format(
+				"Document '%s' not found in table '%s'.", name, table));
+		}
+		EmbeddedDocument doc = this.createDocument(db, embeddedTable, name, null);
+		if (defaultFieldValues != null) {
+			List<String> columns = embeddedTable.getColumns().getNames();
+			for (int i = 1; i < columns.size(); i++) {
+				String[] defaults = defaultFieldValues.get(columns.get(i));
+				if (defaults != null && defaults.length > 0) {
+					try {
+						this.setValue(doc.getAllFields().get(columns.get(i)),
+							embeddedTable.parse(i, defaults[0]));
+					} catch (ParseException e) {
+						throw new BackendException(e);
+					} catch (NumberFormatException e) {
+						throw new BackendException(e);
+					}
+				}
+			}
+		}
+		return doc;
+	}
+
+	/**
+	 * converts the strings of a submitted form like the values of the log
+	 */
+	private Object toValue(final EmbeddedTable embeddedTable, final int index,
+		final Object value) throws BackendException {
+		if (!(value instanceof String)) {
+			return value;
+		}
+		try {
+			return embeddedTable.parse(index, (String) value);
+		} catch (ParseException e) {
+			throw new BackendException(e);
+		} catch (NumberFormatException e) {
+			throw new BackendException(e);
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void setValue(final Field field, final Object value) {
+		field.setValue(value);
+	}
+
+	@Override
+	public Document getDocument(final String user, final String password,
+		final String db, final String table, final String name,
+		final boolean allowEmpty) throws BackendException,
+		DocumentNotFoundException {
+		return this.getDocument(user, password, db, table, name, allowEmpty, null);
+	}
+
+	@Override
+	public Map<String, Document> getDocuments(final String user,
+		final String password, final String db, final String table,
+		final List<String> names) throws BackendException {
+		this.authenticate(user, password);
+		EmbeddedTable embeddedTable = this.getTable(db, table);
+		Map<String, Document> result = new LinkedHashMap<String, Document>();
+		for (String name : names) {
+			Object[] values = embeddedTable.get(name);
+			result.put(name, values == null ? null : this.createDocument(db,
+				embeddedTable, name, values));
+		}
+		return result;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Document saveDocument(final String user, final String password,
+		final String db, final String table, final String name,
+		final Document document) throws BackendException {
+		this.authenticate(user, password);
+		EmbeddedTable embeddedTable = this.getTable(db, table);
+		List<String> columns = embeddedTable.getColumns().getNames();
+		int versionIndex = embeddedTable.getColumns().indexOf("version");
+		synchronized (embeddedTable) {
+			Object[] old = embeddedTable.get(name);
+			Object[] values = new Object[columns.size()];
+			for (int i = 0; i < values.length; i++) {
+				Field field = document.getAllFields().get(columns.get(i));
+				// like an update in the PostgreSQL backend, null keeps the old value
+				values[i] = field != null && field.getValue() != null ? this.toValue(
+					embeddedTable, i, field.getValue()) : old == null ? null : old[i];
+			}
+			values[0] = name;
+			if (versionIndex > 0) {
+				Field versionField = document.getAllFields().get("version");
+				if (old != null
+					&& versionField != null
+					&& versionField.getValue() != null
+					&& !this.toValue(embeddedTable, versionIndex,
+						versionField.getValue()).equals(old[versionIndex])) {
+					throw new BackendException(
+						String
+							.format(
+								"There is a new version of the record with name '%s' in table '%s', please repeat editing.",
+								name, table));
+				}
+				int version = old == null || old[versionIndex] == null ? 0
+					: ((Number) old[versionIndex]).intValue();
+				values[versionIndex] = version + 1;
+				if (versionField != null) {
+					this.setValue(versionField, values[versionIndex]);
+				}
+			}
+			synchronized (this) {
+				this.append("put", db, embeddedTable, name, values);
+			}
+			embeddedTable.put(name, values);
+		}
+		return document;
+	}
+
+	@Override
+	public void deleteDocument(final String user, final String password,
+		final String db, final String table, final String name)
+		throws BackendException {
+		this.authenticate(user, password);
+		EmbeddedTable embeddedTable = this.getTable(db, table);
+		synchronized (embeddedTable) {
+			synchronized (this) {
+				this.append("del", db, embeddedTable, name, null);
+			}
+			embeddedTable.remove(name);
+		}
+	}
+
+	private static boolean matches(final Object value, final String operator,
+		final Object expected) {
+		if ("like".equalsIgnoreCase(operator)) {
+			String regex = Pattern.quote(String.valueOf(expected))
+				.replace("%", "\\E.*\\Q").replace("_", "\\E.\\Q");
+			return value != null
+				&& Pattern.compile(regex, Pattern.DOTALL).matcher(String.valueOf(value))
+					.matches();
+		}
+		if (value == null || expected == null) {
+			return false;
+		}
+		int comparison = EmbeddedBackend.compare(value, expected);
+		if ("=".equals(operator)) {
+			return comparison == 0;
+		} else if ("<>".equals(operator) || "!=".equals(operator)) {
+			return comparison != 0;
+		} else if ("<".equals(operator)) {
+			return comparison < 0;
+		} else if (">".equals(operator)) {
+			return comparison > 0;
+		} else if ("<=".equals(operator)) {
+			return comparison <= 0;
+		}
+		return comparison >= 0;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static int compare(final Object a, final Object b) {
+		if (a == null || b == null) {
+			return a == null ? (b == null ? 0 : -1) : 1;
+		}
+		return ((Comparable) a).compareTo(b);
+	}
+
+	@Override
+	public List<Row> executeQuery(final String user, final String password,
+		final String db, final String query) throws BackendException {
+		this.authenticate(user, password);
+		Matcher matcher = EmbeddedBackend.SELECT.matcher(query);
+		if (!matcher.matches()) {
+			throw new BackendException(String.format(
+				"The embedded backend does not support the query '%s'.", query.trim()));
+		}
+		EmbeddedTable table = this.getTable(db, matcher.group(2));
+		ArrayRow.Columns tableColumns = table.getColumns();
+
+		int[] selected;
+		if ("*".equals(matcher.group(1).trim())) {
+			selected = new int[tableColumns.size()];
+			for (int i = 0; i < selected.length; i++) {
+				selected[i] = i;
+			}
+		} else {
+			String[] names = matcher.group(1).split(",");
+			selected = new int[names.length];
+			for (int i = 0; i < names.length; i++) {
+				selected[i] = this.getColumnIndex(table,
+					StringUtils.strip(names[i].trim(), "\""));
+			}
+		}
+		String[] names = new String[selected.length];
+		for (int i = 0; i < selected.length; i++) {
+			names[i] = tableColumns.getNames().get(selected[i]);
+		}
+		ArrayRow.Columns columns = new ArrayRow.Columns(names);
+
+		int whereIndex = -1;
+		Object expected = null;
+		if (matcher.group(3) != null) {
+			whereIndex = this.getColumnIndex(table, matcher.group(3));
+			String literal = matcher.group(5);
+			if (literal.startsWith("'")) {
+				literal = literal.substring(1, literal.length() - 1).replace("''", "'");
+			}
+			try {
+				expected = "like".equalsIgnoreCase(matcher.group(4)) ? literal : table
+					.parse(whereIndex, literal);
+			} catch (ParseException e) {
+				throw new BackendException(e);
+			} catch (NumberFormatException e) {
+				throw new BackendException(e);
+			}
+		}
+
+		List<Object[]> matching = new ArrayList<Object[]>();
+		for (Object[] values : table.getRows()) {
+			if (whereIndex < 0
+				|| EmbeddedBackend.matches(values[whereIndex], matcher.group(4),
+					expected)) {
+				matching.add(values);
+			}
+		}
+		if (matcher.group(6) != null) {
+			final int orderIndex = this.getColumnIndex(table, matcher.group(6));
+			final boolean descending = "desc".equalsIgnoreCase(matcher.group(7));
+			Collections.sort(matching, new Comparator<Object[]>() {
+				@Override
+				public int compare(final Object[] a, final Object[] b) {
+					int result = EmbeddedBackend.compare(a[orderIndex], b[orderIndex]);
+					return descending ? -result : result;
+				}
+			});
+		}
+		int limit = matcher.group(8) == null ? Integer.MAX_VALUE : Integer
+			.parseInt(matcher.group(8));
+
+		List<Row> result = new ArrayList<Row>();
+		for (Object[] values : matching) {
+			if (result.size() >= limit) {
+				break;
+			}
+			Object[] rowValues = new Object[selected.length];
+			for (int i = 0; i < selected.length; i++) {
+				rowValues[i] = values[selected[i]];
+			}
+			result.add(new ArrayRow(columns, rowValues));
+		}
+		return result;
+	}
+
+	private int getColumnIndex(final EmbeddedTable table, final String column)
+		throws BackendException {
+		int index = table.getColumns().indexOf(column);
+		if (index < 0) {
+			throw new BackendException(String.format(
+				"There is no column '%s' in table '%s'.", column, table.getName()));
+		}
+		return index;
+	}
+
+	/**
+	 * the rows are in memory anyway, so this only wraps executeQuery
+	 */
+	@Override
+	public RowIterator iterateQuery(final String user, final String password,
+		final String db, final String query) throws BackendException {
+		final java.util.Iterator<Row> rows = this.executeQuery(user, password, db,
+			query).iterator();
+		return new RowIterator() {
+			@Override
+			public boolean hasNext() {
+				return rows.hasNext();
+			}
+
+			@Override
+			public Row next() {
+				return rows.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public void executeUpdate(final String user, final String password,
+		final String db, final String statement) throws BackendException {
+		throw new BackendException(
+			"The embedded backend does not support SQL updates.");
+	}
+
+	@Override
+	public long exportTable(final String user, final String password,
+		final String db, final String table, final BulkFormat format,
+		final Writer out) throws BackendException {
+		this.authenticate(user, password);
+		EmbeddedTable embeddedTable = this.getTable(db, table);
+		long rows = 0;
+		try {
+			if (format == BulkFormat.csv) {
+				List<String> header = new ArrayList<String>();
+				for (String column : embeddedTable.getColumns().getNames()) {
+					header.add(EmbeddedBackend.csv(column));
+				}
+				out.write(StringUtils.join(header, ",") + "\n");
+			}
+			for (Object[] values : embeddedTable.getRows()) {
+				List<String> line = new ArrayList<String>();
+				for (int i = 0; i < values.length; i++) {
+					String value = embeddedTable.format(i, values[i]);
+					line.add(format == BulkFormat.csv ? (value == null ? ""
+						: EmbeddedBackend.csv(value)) : EmbeddedBackend.escape(value));
+				}
+				out.write(StringUtils.join(line, format == BulkFormat.csv ? ","
+					: "\t") + "\n");
+				rows++;
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new BackendException(e);
+		}
+		return rows;
+	}
+
+	private static String csv(final String value) {
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	@Override
+	public long importTable(final String user, final String password,
+		final String db, final String table, final BulkFormat format,
+		final Reader in, final ImportListener listener) throws BackendException {
+		throw new BackendException(
+			"The embedded backend does not support bulk imports.");
+	}
+
+	@Override
+	public List<String> getTables(final String user, final String password,
+		final String db) throws BackendException {
+		this.authenticate(user, password);
+		Map<String, EmbeddedTable> tables = this.databases.get(StringUtils
+			.substringBefore(db, "."));
+		return tables == null ? new ArrayList<String>() : new ArrayList<String>(
+			tables.keySet());
+	}
+
+	@Override
+	public List<String> getNames(final String user, final String password,
+		final String db, final String table) throws BackendException {
+		return this.getNames(user, password, db, table, null, null,
+			Integer.MAX_VALUE);
+	}
+
+	@Override
+	public List<String> getNames(final String user, final String password,
+		final String db, final String table, final String after,
+		final String prefix, final int limit) throws BackendException {
+		this.authenticate(user, password);
+		return this.getTable(db, table).getNames(after, prefix, limit);
+	}
+
+	/**
+	 * closes the log file, no writes are possible afterwards
+	 */
+	public synchronized void close() {
+		IOUtils.closeQuietly(this.log);
+		this.log = null;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db.embedded;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jp.mathes.databaseWiki.db.Document;
+import jp.mathes.databaseWiki.db.Field;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+public class EmbeddedDocument implements Document {
+
+	@SuppressWarnings({ "rawtypes" })
+	private final Map<String, Field> fields = new LinkedHashMap<String, Field>();
+	private final String database;
+	private final String table;
+	private final String name;
+
+	public EmbeddedDocument(final String database, final String table,
+		final String name) {
+		this.database = database;
+		this.table = table;
+		this.name = name;
+	}
+
+	@SuppressWarnings({ "rawtypes" })
+	@Override
+	public Map<String, Field> getAllFields() {
+		return this.fields;
+	}
+
+	@SuppressWarnings({ "rawtypes" })
+	public void addField(final String name, final Field field) {
+		this.fields.put(name, field);
+	}
+
+	@Override
+	public String getDatabase() {
+		return this.database;
+	}
+
+	@Override
+	public String getTable() {
+		return this.table;
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@SuppressWarnings({ "rawtypes" })
+	@Override
+	public EmbeddedDocument copy() {
+		EmbeddedDocument result = new EmbeddedDocument(this.database, this.table,
+			this.name);
+		for (Map.Entry<String, Field> entry : this.fields.entrySet()) {
+			result.addField(entry.getKey(), entry.getValue().copy());
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return ToStringBuilder.reflectionToString(this);
+	}
+}
@@ -0,0 +1,90 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db.embedded;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import jp.mathes.databaseWiki.db.Field;
+import jp.mathes.databaseWiki.db.FieldType;
+import jp.mathes.databaseWiki.db.FieldUsage;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+public class EmbeddedField<T> implements Field<T> {
+
+	private final FieldType type;
+	private final FieldUsage usage;
+	private final String name;
+	private T value;
+
+	public EmbeddedField(final FieldType type, final FieldUsage usage,
+		final String name, final T value) {
+		this.type = type;
+		this.usage = usage;
+		this.name = name;
+		this.value = value;
+	}
+
+	@Override
+	public FieldType getType() {
+		return this.type;
+	}
+
+	@Override
+	public FieldUsage getUsage() {
+		return this.usage;
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public T getValue() {
+		return this.value;
+	}
+
+	@Override
+	public void setValue(final T value) {
+		this.value = value;
+	}
+
+	/**
+	 * there are no foreign keys in the embedded backend
+	 */
+	@Override
+	public List<T> getAllowedValues() {
+		return Collections.emptyList();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public EmbeddedField<T> copy() {
+		T copiedValue = this.value;
+		if (copiedValue instanceof Date) {
+			copiedValue = (T) ((Date) copiedValue).clone();
+		}
+		return new EmbeddedField<T>(this.type, this.usage, this.name, copiedValue);
+	}
+
+	@Override
+	public String toString() {
+		return ToStringBuilder.reflectionToString(this);
+	}
+}
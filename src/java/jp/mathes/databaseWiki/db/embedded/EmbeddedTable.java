@@ -0,0 +1,137 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db.embedded;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import jp.mathes.databaseWiki.db.ArrayRow;
+import jp.mathes.databaseWiki.db.FieldType;
+
+/**
+ * In-memory table, the first column holds the document name. Rows are
+ * immutable arrays sorted by name, writes replace the whole row.
+ */
+class EmbeddedTable {
+
+	private final String name;
+	private final ArrayRow.Columns columns;
+	private final FieldType[] types;
+	private final NavigableMap<String, Object[]> rows = new ConcurrentSkipListMap<String, Object[]>();
+
+	/**
+	 * @param definition columns as name:type,name:type with the types of
+	 *          {@link FieldType}
+	 */
+	public EmbeddedTable(final String name, final String definition) {
+		this.name = name;
+		String[] parts = definition.split(",");
+		String[] names = new String[parts.length];
+		this.types = new FieldType[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			String[] column = parts[i].trim().split(":");
+			names[i] = column[0].trim();
+			this.types[i] = column.length > 1 ? FieldType.valueOf(column[1].trim())
+				: FieldType.string;
+		}
+		this.columns = new ArrayRow.Columns(names);
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public ArrayRow.Columns getColumns() {
+		return this.columns;
+	}
+
+	public FieldType getType(final int index) {
+		return this.types[index];
+	}
+
+	public String getNameColumn() {
+		return this.columns.getNames().get(0);
+	}
+
+	public Object[] get(final String name) {
+		return this.rows.get(name);
+	}
+
+	public void put(final String name, final Object[] values) {
+		this.rows.put(name, values);
+	}
+
+	public void remove(final String name) {
+		this.rows.remove(name);
+	}
+
+	public Iterable<Object[]> getRows() {
+		return this.rows.values();
+	}
+
+	public List<String> getNames(final String after, final String prefix,
+		final int limit) {
+		List<String> result = new ArrayList<String>();
+		NavigableMap<String, Object[]> range = this.rows;
+		if (prefix != null && (after == null || prefix.compareTo(after) > 0)) {
+			range = this.rows.tailMap(prefix, true);
+		} else if (after != null) {
+			range = this.rows.tailMap(after, false);
+		}
+		for (String name : range.keySet()) {
+			if (result.size() >= limit
+				|| (prefix != null && !name.startsWith(prefix))) {
+				break;
+			}
+			result.add(name);
+		}
+		return result;
+	}
+
+	/**
+	 * converts the textual representation of the log or of a query
+	 */
+	public Object parse(final int index, final String value)
+		throws ParseException {
+		if (value == null) {
+			return null;
+		}
+		switch (this.types[index]) {
+		case date:
+			return new SimpleDateFormat("yyyy-MM-dd").parse(value);
+		case dec:
+			return Integer.valueOf(value);
+		case num:
+			return Double.valueOf(value);
+		default:
+			return value;
+		}
+	}
+
+	public String format(final int index, final Object value) {
+		if (value == null) {
+			return null;
+		} else if (value instanceof Date) {
+			return new SimpleDateFormat("yyyy-MM-dd").format((Date) value);
+		}
+		return value.toString();
+	}
+}
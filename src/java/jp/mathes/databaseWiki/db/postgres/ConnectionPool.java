@@ -0,0 +1,653 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db.postgres;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.postgresql.PGConnection;
+
+/**
+ * Pool of physical JDBC connections keyed by (url, user). As the url contains
+ * the database this is a pool per user and database. Connections are handed
+ * out as proxies, closing them returns the physical connection to the pool.
+ *
+ * Every user keeps authenticating with his own password: if a borrower
+ * presents a password different from the one the pool was created with, a new
+ * physical connection is opened with it first, so a wrong password never gets
+ * a pooled connection.
+ */
+public class ConnectionPool {
+
+	public static class Statistics {
+		private int active;
+		private int idle;
+		private long borrowed;
+		private long created;
+		private long destroyed;
+		private long waits;
+		private long timeouts;
+		private long validationFailures;
+
+		public int getActive() {
+			return this.active;
+		}
+
+		public int getIdle() {
+			return this.idle;
+		}
+
+		public long getBorrowed() {
+			return this.borrowed;
+		}
+
+		public long getCreated() {
+			return this.created;
+		}
+
+		public long getDestroyed() {
+			return this.destroyed;
+		}
+
+		public long getWaits() {
+			return this.waits;
+		}
+
+		public long getTimeouts() {
+			return this.timeouts;
+		}
+
+		public long getValidationFailures() {
+			return this.validationFailures;
+		}
+
+		public Map<String, Long> toMap() {
+			Map<String, Long> result = new LinkedHashMap<String, Long>();
+			result.put("active", (long) this.active);
+			result.put("idle", (long) this.idle);
+			result.put("borrowed", this.borrowed);
+			result.put("created", this.created);
+			result.put("destroyed", this.destroyed);
+			result.put("waits", this.waits);
+			result.put("timeouts", this.timeouts);
+			result.put("validationFailures", this.validationFailures);
+			return result;
+		}
+
+		private void add(final Statistics other) {
+			this.active += other.active;
+			this.idle += other.idle;
+			this.borrowed += other.borrowed;
+			this.created += other.created;
+			this.destroyed += other.destroyed;
+			this.waits += other.waits;
+			this.timeouts += other.timeouts;
+			this.validationFailures += other.validationFailures;
+		}
+
+		@Override
+		public String toString() {
+			return ToStringBuilder.reflectionToString(this);
+		}
+	}
+
+	private static class CachedStatement {
+		private final String sql;
+		private final PreparedStatement statement;
+		private boolean inUse;
+		/** closed instead of kept when it is given back */
+		private boolean discarded;
+
+		public CachedStatement(final String sql, final PreparedStatement statement) {
+			this.sql = sql;
+			this.statement = statement;
+		}
+	}
+
+	private static class PhysicalConnection {
+		private final Connection connection;
+		private final LinkedHashMap<String, CachedStatement> statements;
+		private long lastUsed;
+		private boolean broken;
+		private int statementGeneration;
+
+		public PhysicalConnection(final Connection connection,
+			final int statementCacheSize) {
+			this.connection = connection;
+			this.lastUsed = System.currentTimeMillis();
+			this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f,
+				true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+					final Map.Entry<String, CachedStatement> eldest) {
+					if (this.size() > statementCacheSize && !eldest.getValue().inUse) {
+						DbUtils.closeQuietly(eldest.getValue().statement);
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		/**
+		 * hands out the cached statement for the sql, so the driver can switch to
+		 * a server side prepared statement once it was used often enough
+		 */
+		public PreparedStatement prepare(final String sql,
+			final int statementCacheSize, final int generation)
+			throws SQLException {
+			if (statementCacheSize <= 0) {
+				return this.connection.prepareStatement(sql);
+			}
+			if (generation != this.statementGeneration) {
+				// the plans may refer to tables changed since
+				this.closeStatements();
+				this.statementGeneration = generation;
+			}
+			CachedStatement cached = this.statements.get(sql);
+			if (cached == null) {
+				cached = new CachedStatement(sql, this.connection.prepareStatement(sql));
+				this.statements.put(sql, cached);
+			} else if (cached.inUse) {
+				// the same statement twice at once, do not share it
+				return this.connection.prepareStatement(sql);
+			}
+			cached.inUse = true;
+			return (PreparedStatement) Proxy.newProxyInstance(
+				PreparedStatement.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class },
+				new CachedStatementHandler(this, cached));
+		}
+
+		/**
+		 * statements in use are closed when they are given back
+		 */
+		public void closeStatements() {
+			for (CachedStatement cached : this.statements.values()) {
+				if (cached.inUse) {
+					cached.discarded = true;
+				} else {
+					DbUtils.closeQuietly(cached.statement);
+				}
+			}
+			this.statements.clear();
+		}
+
+		/**
+		 * drops a statement that failed, e.g. with "cached plan must not change
+		 * result type" after the table was altered
+		 */
+		public void discard(final CachedStatement cached) {
+			cached.discarded = true;
+			if (this.statements.get(cached.sql) == cached) {
+				this.statements.remove(cached.sql);
+			}
+		}
+	}
+
+	private static class CachedStatementHandler implements InvocationHandler {
+		private final PhysicalConnection physical;
+		private CachedStatement cached;
+
+		public CachedStatementHandler(final PhysicalConnection physical,
+			final CachedStatement cached) {
+			this.physical = physical;
+			this.cached = cached;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method,
+			final Object[] args) throws Throwable {
+			String methodName = method.getName();
+			if ("close".equals(methodName)) {
+				if (this.cached != null) {
+					try {
+						if (this.cached.discarded) {
+							this.cached.statement.close();
+						} else {
+							this.cached.statement.clearParameters();
+							this.cached.statement.setMaxRows(0);
+							this.cached.statement.setFetchSize(0);
+						}
+					} finally {
+						this.cached.inUse = false;
+						this.cached = null;
+					}
+				}
+				return null;
+			} else if ("isClosed".equals(methodName)) {
+				return this.cached == null;
+			} else if ("equals".equals(methodName)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(methodName)) {
+				return System.identityHashCode(proxy);
+			}
+			CachedStatement current = this.cached;
+			if (current == null) {
+				throw new SQLException("Statement has been closed.");
+			}
+			try {
+				return method.invoke(current.statement, args);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof SQLException) {
+					this.physical.discard(current);
+				}
+				throw e.getCause();
+			}
+		}
+	}
+
+	private class Pool {
+		private final String url;
+		private final String user;
+		private volatile String password;
+		private final LinkedList<PhysicalConnection> idle = new LinkedList<PhysicalConnection>();
+		private final Statistics statistics = new Statistics();
+
+		public Pool(final String url, final String user, final String password) {
+			this.url = url;
+			this.user = user;
+			this.password = password;
+		}
+
+		private PhysicalConnection open(final String password)
+			throws SQLException {
+			Connection connection = DriverManager.getConnection(this.url, this.user,
+				password);
+			synchronized (this) {
+				this.statistics.created++;
+			}
+			return new PhysicalConnection(connection,
+				ConnectionPool.this.statementCacheSize);
+		}
+
+		/**
+		 * waits for a free slot and takes it
+		 *
+		 * @return an idle connection or null if a new one may be opened
+		 */
+		private synchronized PhysicalConnection acquire(final long deadline)
+			throws SQLException {
+			while (this.idle.isEmpty()
+				&& this.statistics.active >= ConnectionPool.this.maxSize) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					this.statistics.timeouts++;
+					throw new SQLException(String.format(
+						"Timeout waiting for a connection to %s as %s.", this.url,
+						this.user));
+				}
+				this.statistics.waits++;
+				try {
+					this.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted waiting for a connection.");
+				}
+			}
+			this.statistics.active++;
+			this.statistics.borrowed++;
+			return this.idle.isEmpty() ? null : this.idle.removeFirst();
+		}
+
+		public Connection borrow(final String password) throws SQLException {
+			long deadline = System.currentTimeMillis()
+				+ ConnectionPool.this.acquireTimeout;
+			while (true) {
+				PhysicalConnection candidate = this.acquire(deadline);
+				boolean passwordChanged = !StringUtils.equals(password, this.password);
+				if (candidate == null || passwordChanged) {
+					if (candidate != null) {
+						this.destroy(candidate);
+					}
+					PhysicalConnection fresh;
+					try {
+						// authenticates a new password, throws if it is wrong
+						fresh = this.open(password);
+					} catch (SQLException e) {
+						this.release();
+						throw e;
+					}
+					if (passwordChanged) {
+						synchronized (this) {
+							this.password = password;
+						}
+						this.closeIdle(0);
+					}
+					return this.wrap(fresh);
+				}
+				if (ConnectionPool.this.validate(candidate)) {
+					return this.wrap(candidate);
+				}
+				synchronized (this) {
+					this.statistics.validationFailures++;
+				}
+				this.destroy(candidate);
+				this.release();
+			}
+		}
+
+		private Connection wrap(final PhysicalConnection physical) {
+			// PGConnection gives access to the COPY API of the driver
+			return (Connection) Proxy.newProxyInstance(
+				ConnectionPool.class.getClassLoader(), new Class<?>[] {
+					Connection.class, PGConnection.class },
+				new PooledConnectionHandler(this, physical));
+		}
+
+		private synchronized void release() {
+			this.statistics.active--;
+			this.notifyAll();
+		}
+
+		public void giveBack(final PhysicalConnection physical) {
+			boolean reusable = !physical.broken;
+			if (reusable) {
+				try {
+					if (!physical.connection.getAutoCommit()) {
+						physical.connection.rollback();
+						physical.connection.setAutoCommit(true);
+					}
+					if (physical.connection.isReadOnly()) {
+						physical.connection.setReadOnly(false);
+					}
+				} catch (SQLException e) {
+					reusable = false;
+				}
+			}
+			if (reusable) {
+				physical.lastUsed = System.currentTimeMillis();
+				synchronized (this) {
+					this.idle.addFirst(physical);
+				}
+			} else {
+				this.destroy(physical);
+			}
+			this.release();
+		}
+
+		private void destroy(final PhysicalConnection physical) {
+			physical.closeStatements();
+			DbUtils.closeQuietly(physical.connection);
+			synchronized (this) {
+				this.statistics.destroyed++;
+			}
+		}
+
+		/** closes idle connections unused for idleMillis, keeping minSize */
+		public void closeIdle(final long idleMillis) {
+			long now = System.currentTimeMillis();
+			LinkedList<PhysicalConnection> expired = new LinkedList<PhysicalConnection>();
+			synchronized (this) {
+				Iterator<PhysicalConnection> it = this.idle.descendingIterator();
+				while (it.hasNext()
+					&& this.idle.size() + this.statistics.active > ConnectionPool.this.minSize) {
+					PhysicalConnection physical = it.next();
+					if (now - physical.lastUsed >= idleMillis) {
+						it.remove();
+						expired.add(physical);
+					}
+				}
+			}
+			for (PhysicalConnection physical : expired) {
+				this.destroy(physical);
+			}
+		}
+
+		/** opens connections until the pool holds size connections */
+		public void fill(final int size) {
+			while (true) {
+				synchronized (this) {
+					if (this.idle.size() + this.statistics.active >= Math.min(size,
+						ConnectionPool.this.maxSize)) {
+						return;
+					}
+				}
+				try {
+					PhysicalConnection physical = this.open(this.password);
+					synchronized (this) {
+						this.idle.addLast(physical);
+					}
+				} catch (SQLException e) {
+					return;
+				}
+			}
+		}
+
+		public synchronized Statistics getStatistics() {
+			Statistics result = new Statistics();
+			result.add(this.statistics);
+			result.idle = this.idle.size();
+			return result;
+		}
+
+		public void close() {
+			LinkedList<PhysicalConnection> all;
+			synchronized (this) {
+				all = new LinkedList<PhysicalConnection>(this.idle);
+				this.idle.clear();
+			}
+			for (PhysicalConnection physical : all) {
+				this.destroy(physical);
+			}
+		}
+	}
+
+	private class PooledConnectionHandler implements InvocationHandler {
+		private final Pool pool;
+		private PhysicalConnection physical;
+
+		public PooledConnectionHandler(final Pool pool,
+			final PhysicalConnection physical) {
+			this.pool = pool;
+			this.physical = physical;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method,
+			final Object[] args) throws Throwable {
+			String methodName = method.getName();
+			if ("close".equals(methodName)) {
+				PhysicalConnection toReturn;
+				synchronized (this) {
+					toReturn = this.physical;
+					this.physical = null;
+				}
+				if (toReturn != null) {
+					this.pool.giveBack(toReturn);
+				}
+				return null;
+			} else if ("isClosed".equals(methodName)) {
+				return this.physical == null;
+			} else if ("equals".equals(methodName)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(methodName)) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(methodName)) {
+				return "Pooled " + this.pool.url;
+			}
+			PhysicalConnection current = this.physical;
+			if (current == null) {
+				throw new SQLException("Connection has been returned to the pool.");
+			}
+			try {
+				if ("prepareStatement".equals(methodName) && args.length == 1) {
+					return current.prepare((String) args[0],
+						ConnectionPool.this.statementCacheSize,
+						ConnectionPool.this.statementGeneration);
+				}
+				return method.invoke(current.connection, args);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof SQLException
+					&& StringUtils.startsWith(((SQLException) cause).getSQLState(), "08")) {
+					// connection exception class, do not hand this one out again
+					current.broken = true;
+				}
+				throw cause;
+			}
+		}
+	}
+
+	private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+	private final int minSize;
+	private final int maxSize;
+	private final long idleTimeout;
+	private final long acquireTimeout;
+	private final String validationQuery;
+	private final int statementCacheSize;
+	private volatile int statementGeneration = 0;
+	private final Timer evictor;
+
+	/**
+	 * @param minSize connections kept open per (url, user)
+	 * @param maxSize maximum number of connections per (url, user)
+	 * @param idleTimeout seconds after which unused connections are closed
+	 * @param acquireTimeout seconds to wait for a free connection
+	 * @param validationQuery query run on borrow, empty to disable validation
+	 * @param statementCacheSize prepared statements cached per connection
+	 */
+	public ConnectionPool(final int minSize, final int maxSize,
+		final int idleTimeout, final int acquireTimeout,
+		final String validationQuery, final int statementCacheSize) {
+		this.minSize = minSize;
+		this.maxSize = Math.max(1, maxSize);
+		this.idleTimeout = idleTimeout * 1000L;
+		this.acquireTimeout = acquireTimeout * 1000L;
+		this.validationQuery = validationQuery;
+		this.statementCacheSize = statementCacheSize;
+		try {
+			Class.forName("org.postgresql.Driver");
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+		}
+		this.evictor = new Timer("dbw-pool-evictor", true);
+		long period = Math.max(1000L, Math.min(this.idleTimeout, 60000L));
+		this.evictor.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				ConnectionPool.this.evict();
+			}
+		}, period, period);
+	}
+
+	private Pool getPool(final String url, final String user,
+		final String password) {
+		String key = url + "\u0000" + user;
+		Pool pool = this.pools.get(key);
+		if (pool == null) {
+			Pool newPool = new Pool(url, user, password);
+			pool = this.pools.putIfAbsent(key, newPool);
+			if (pool == null) {
+				pool = newPool;
+			}
+		}
+		return pool;
+	}
+
+	public Connection getConnection(final String url, final String user,
+		final String password) throws SQLException {
+		return this.getPool(url, user, password).borrow(password);
+	}
+
+	/**
+	 * opens connections for the given credentials until the pool holds at least
+	 * minSize of them (or one if minSize is 0)
+	 */
+	public void prime(final String url, final String user, final String password)
+		throws SQLException {
+		Connection conn = this.getConnection(url, user, password);
+		conn.close();
+		this.getPool(url, user, password).fill(Math.max(1, this.minSize));
+	}
+
+	private boolean validate(final PhysicalConnection physical) {
+		if (StringUtils.isEmpty(this.validationQuery)) {
+			return true;
+		}
+		Statement st = null;
+		try {
+			st = physical.connection.createStatement();
+			st.execute(this.validationQuery);
+			return true;
+		} catch (SQLException e) {
+			return false;
+		} finally {
+			DbUtils.closeQuietly(st);
+		}
+	}
+
+	private void evict() {
+		for (Pool pool : this.pools.values()) {
+			pool.closeIdle(this.idleTimeout);
+			if (this.minSize > 0) {
+				pool.fill(this.minSize);
+			}
+		}
+	}
+
+	/**
+	 * @return statistics per "user@url" plus the sum of all pools under the key
+	 *         "total"
+	 */
+	public Map<String, Statistics> getStatistics() {
+		Map<String, Statistics> result = new LinkedHashMap<String, Statistics>();
+		Statistics total = new Statistics();
+		for (Pool pool : this.pools.values()) {
+			Statistics statistics = pool.getStatistics();
+			total.add(statistics);
+			result.put(pool.user + "@" + pool.url, statistics);
+		}
+		result.put("total", total);
+		return result;
+	}
+
+	/**
+	 * makes every connection close its cached statements before it prepares the
+	 * next one, e.g. after DDL changed the tables they refer to
+	 */
+	public void clearStatements() {
+		this.statementGeneration++;
+	}
+
+	public void close() {
+		this.evictor.cancel();
+		for (Pool pool : this.pools.values()) {
+			pool.close();
+		}
+		this.pools.clear();
+	}
+}
@@ -0,0 +1,101 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db.postgres;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits COPY input into records. In the text format a record is a line, in
+ * CSV a quoted value may contain line breaks, so a record only ends at a line
+ * break outside of quotes.
+ */
+class CopyRecordReader {
+
+	private final BufferedReader reader;
+	private final boolean csv;
+
+	public CopyRecordReader(final Reader reader, final boolean csv) {
+		this.reader = new BufferedReader(reader);
+		this.csv = csv;
+	}
+
+	/**
+	 * @return the next record including its line break or null at the end
+	 */
+	public String readRecord() throws IOException {
+		String line = this.reader.readLine();
+		if (line == null) {
+			return null;
+		}
+		StringBuilder record = new StringBuilder(line).append('\n');
+		if (this.csv) {
+			int quotes = CopyRecordReader.countQuotes(line);
+			while (quotes % 2 != 0 && (line = this.reader.readLine()) != null) {
+				record.append(line).append('\n');
+				quotes += CopyRecordReader.countQuotes(line);
+			}
+		}
+		return record.toString();
+	}
+
+	/**
+	 * splits a CSV record into its values like COPY does: quotes are removed,
+	 * doubled quotes inside them stand for one, whitespace is kept
+	 */
+	public static List<String> splitCsv(final String record) {
+		String text = record.endsWith("\n") ? record.substring(0,
+			record.length() - 1) : record;
+		List<String> result = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (quoted) {
+				if (c != '"') {
+					value.append(c);
+				} else if (i + 1 < text.length() && text.charAt(i + 1) == '"') {
+					value.append('"');
+					i++;
+				} else {
+					quoted = false;
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				result.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		result.add(value.toString());
+		return result;
+	}
+
+	private static int countQuotes(final String line) {
+		int result = 0;
+		for (int i = 0; i < line.length(); i++) {
+			if (line.charAt(i) == '"') {
+				result++;
+			}
+		}
+		return result;
+	}
+}
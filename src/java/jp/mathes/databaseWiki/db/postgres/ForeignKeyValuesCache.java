@@ -0,0 +1,135 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db.postgres;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of the distinct values of referenced foreign key columns, bounded
+ * by the total number of cached values. Entries are kept per user as the
+ * referenced table may not be readable by everyone.
+ */
+public class ForeignKeyValuesCache {
+
+	private static class Entry {
+		private final String db;
+		private final String schema;
+		private final String table;
+		private final List<Object> values;
+
+		public Entry(final String db, final String schema, final String table,
+			final List<Object> values) {
+			this.db = db;
+			this.schema = schema;
+			this.table = table;
+			this.values = values;
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+		16, 0.75f, true);
+	private final int maxValues;
+	private int size = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param maxValues maximum number of values over all entries, 0 disables
+	 *          the cache
+	 */
+	public ForeignKeyValuesCache(final int maxValues) {
+		this.maxValues = maxValues;
+	}
+
+	private static String key(final String user, final String db,
+		final String schema, final String table, final String column) {
+		return user + "\u0000" + db + "\u0000" + schema + "\u0000" + table
+			+ "\u0000" + column;
+	}
+
+	/**
+	 * @return the unmodifiable cached values or null
+	 */
+	public synchronized List<Object> get(final String user, final String db,
+		final String schema, final String table, final String column) {
+		Entry entry = this.entries.get(ForeignKeyValuesCache.key(user, db, schema,
+			table, column));
+		if (entry == null) {
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return entry.values;
+	}
+
+	public synchronized void put(final String user, final String db,
+		final String schema, final String table, final String column,
+		final List<Object> values) {
+		if (this.maxValues <= 0 || values.size() > this.maxValues) {
+			return;
+		}
+		Entry old = this.entries.put(
+			ForeignKeyValuesCache.key(user, db, schema, table, column), new Entry(db,
+				schema, table, Collections.unmodifiableList(values)));
+		if (old != null) {
+			this.size -= old.values.size();
+		}
+		this.size += values.size();
+		Iterator<Entry> it = this.entries.values().iterator();
+		while (this.size > this.maxValues && it.hasNext()) {
+			this.size -= it.next().values.size();
+			it.remove();
+		}
+	}
+
+	/**
+	 * drops all values read from the given table
+	 */
+	public synchronized void invalidate(final String db, final String schema,
+		final String table) {
+		for (Iterator<Entry> it = this.entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.db.equals(db) && entry.schema.equals(schema)
+				&& entry.table.equals(table)) {
+				this.size -= entry.values.size();
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void invalidate(final String db) {
+		for (Iterator<Entry> it = this.entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.db.equals(db)) {
+				this.size -= entry.values.size();
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized Map<String, Long> getStatistics() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		result.put("entries", (long) this.entries.size());
+		result.put("values", (long) this.size);
+		result.put("hits", this.hits);
+		result.put("misses", this.misses);
+		return result;
+	}
+}
@@ -15,25 +15,36 @@
 */
 package jp.mathes.databaseWiki.db.postgres;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
+import java.sql.Types;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import jp.mathes.databaseWiki.db.ArrayRow;
 import jp.mathes.databaseWiki.db.Backend;
 import jp.mathes.databaseWiki.db.BackendException;
 import jp.mathes.databaseWiki.db.Document;
@@ -41,37 +52,213 @@ import jp.mathes.databaseWiki.db.DocumentNotFoundException;
 import jp.mathes.databaseWiki.db.Field;
 import jp.mathes.databaseWiki.db.FieldType;
 import jp.mathes.databaseWiki.db.FieldUsage;
+import jp.mathes.databaseWiki.db.InvalidationBus;
+import jp.mathes.databaseWiki.db.QueryContext;
+import jp.mathes.databaseWiki.db.Warmable;
+import jp.mathes.databaseWiki.log.AsyncLog;
+import jp.mathes.databaseWiki.metrics.Metrics;
+import jp.mathes.databaseWiki.metrics.OperationMetrics;
 
 import org.apache.commons.dbutils.DbUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
 
-public class PostgresBackend implements Backend {
+public class PostgresBackend implements Backend, InvalidationBus.Listener,
+	Warmable, Closeable {
 
-	public static class PostgresRow implements Row {
+	/**
+	 * classic: count, version check and update/insert in up to four round trips
+	 * conditional: update ... where version = ? returning version, falling back
+	 * to a guarded insert for new documents
+	 * upsert: a single insert ... on conflict do update (PostgreSQL 9.5+)
+	 */
+	public static enum SaveMode {
+		classic, conditional, upsert
+	}
+
+	/**
+	 * iterates over a forward-only result set, the connection is released when
+	 * the last row was read or on close
+	 */
+	private class PostgresRowIterator implements RowIterator,
+		QueryContext.Cancellable {
 
-		List<Object> fields;
-		Map<String, Object> fieldsByName;
+		private Connection conn;
+		private PreparedStatement st;
+		private ResultSet rs;
+		private ArrayRow.Columns columns;
+		private Boolean hasNext = null;
+		private final QueryContext context;
+		private final int maxRows;
+		private final long maxBytes;
+		private int rows = 0;
+		private long bytes = 0;
+		private long decodeNanos = 0;
 
-		public PostgresRow() {
-			this.fields = new LinkedList<Object>();
-			this.fieldsByName = new HashMap<String, Object>();
+		public PostgresRowIterator(final Connection conn,
+			final PreparedStatement st, final QueryContext context,
+			final int maxRows, final long maxBytes) {
+			this.conn = conn;
+			this.st = st;
+			this.context = context;
+			this.maxRows = maxRows;
+			this.maxBytes = maxBytes;
+			if (context != null) {
+				context.register(this);
+			}
+		}
+
+		private void execute() throws BackendException {
+			long start = System.nanoTime();
+			boolean failed = true;
+			try {
+				this.rs = this.st.executeQuery();
+				this.columns = PostgresBackend.getColumns(this.rs);
+				failed = false;
+			} catch (SQLException e) {
+				throw this.fail(e);
+			} finally {
+				Metrics.getInstance().getOperation("postgres.execute", null)
+					.record(start, failed);
+			}
+		}
+
+		private BackendException fail(final Exception e) {
+			if (e instanceof SQLException && this.conn != null) {
+				try {
+					// a shared connection starts a new transaction
+					this.conn.rollback();
+				} catch (SQLException rollbackException) {
+					rollbackException.printStackTrace();
+				}
+			}
+			this.close();
+			if (this.context != null && this.context.isCancelled()) {
+				return new BackendException("The query was cancelled.");
+			}
+			return e instanceof BackendException ? (BackendException) e
+				: new BackendException(e);
 		}
 
 		@Override
-		public List<Object> getFields() {
-			return this.fields;
+		public boolean hasNext() {
+			if (this.hasNext == null) {
+				if (this.rs == null) {
+					return false;
+				}
+				try {
+					this.hasNext = this.rs.next();
+				} catch (SQLException e) {
+					throw new IllegalStateException(this.fail(e));
+				}
+				if (!this.hasNext) {
+					this.close();
+				}
+			}
+			return this.hasNext;
+		}
+
+		@Override
+		public Row next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			this.hasNext = null;
+			Object[] values = new Object[this.columns.size()];
+			long start = System.nanoTime();
+			try {
+				for (int i = 0; i < values.length; i++) {
+					values[i] = this.rs.getObject(i + 1);
+					this.bytes += PostgresBackend.estimateSize(values[i]);
+				}
+			} catch (SQLException e) {
+				throw new IllegalStateException(this.fail(e));
+			} finally {
+				this.decodeNanos += System.nanoTime() - start;
+			}
+			if (this.maxRows > 0 && ++this.rows > this.maxRows) {
+				throw new IllegalStateException(this.fail(new BackendException(
+					String.format("The query returned more than %d rows.",
+						this.maxRows))));
+			}
+			if (this.maxBytes > 0 && this.bytes > this.maxBytes) {
+				throw new IllegalStateException(this.fail(new BackendException(
+					String.format("The query returned more than %d bytes.",
+						this.maxBytes))));
+			}
+			return new ArrayRow(this.columns, values);
 		}
 
 		@Override
-		public Map<String, Object> getFieldsByName() {
-			return this.fieldsByName;
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void cancel() {
+			PreparedStatement toCancel = this.st;
+			if (toCancel != null) {
+				try {
+					toCancel.cancel();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			if (this.conn == null) {
+				return;
+			}
+			if (this.context != null) {
+				this.context.unregister(this);
+			}
+			if (this.columns != null) {
+				// one sample per query with the time spent reading all of its rows
+				OperationMetrics decode = Metrics.getInstance().getOperation(
+					"postgres.decode", null);
+				decode.recordDuration(this.decodeNanos, false);
+				decode.addRows(this.rows);
+				decode.addBytes(this.bytes);
+			}
+			DbUtils.closeQuietly(this.rs);
+			DbUtils.closeQuietly(this.st);
+			try {
+				// also resets statement_timeout
+				this.conn.commit();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+			DbUtils.closeQuietly(this.conn);
+			this.rs = null;
+			this.st = null;
+			this.conn = null;
 		}
 	}
 
 	private File logFile;
 	private String host;
 	private String port;
+	private ConnectionPool pool;
+	private SchemaCache schemaCache;
+	private ForeignKeyValuesCache foreignKeyValuesCache;
+	private SaveMode saveMode;
+	private int fetchSize;
+	private int copyCommitInterval;
+	private int queryTimeout;
+	private int queryMaxRows;
+	private long queryMaxBytes;
+	private boolean snapshot;
+	private List<String> replicas = new ArrayList<String>();
+	private long stickiness;
+	private long replicaRetry;
+	private final AtomicInteger nextReplica = new AtomicInteger();
+	private final ConcurrentMap<String, Long> replicasDownUntil = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, Long> lastWrites = new ConcurrentHashMap<String, Long>();
 
 	public PostgresBackend() {
 		super();
@@ -84,36 +271,294 @@ public class PostgresBackend implements Backend {
 			this.host = props.getProperty("dbw.db.backend.postgres.host");
 			this.port = props.getProperty("dbw.db.backend.postgres.port");
 			this.logFile = new File(logFileName);
+			this.pool = new ConnectionPool(Integer.parseInt(props.getProperty(
+				"dbw.db.backend.postgres.pool.min", "0")), Integer.parseInt(props
+				.getProperty("dbw.db.backend.postgres.pool.max", "10")),
+				Integer.parseInt(props.getProperty(
+					"dbw.db.backend.postgres.pool.idletimeout", "300")),
+				Integer.parseInt(props.getProperty(
+					"dbw.db.backend.postgres.pool.acquiretimeout", "30")),
+				props.getProperty("dbw.db.backend.postgres.pool.validationquery",
+					"select 1"), Integer.parseInt(props.getProperty(
+					"dbw.db.backend.postgres.pool.statementcache", "50")));
+			this.schemaCache = new SchemaCache(this, Integer.parseInt(props
+				.getProperty("dbw.db.backend.postgres.metadata.ttl", "300")),
+				SchemaCache.LoadMode.valueOf(props.getProperty(
+					"dbw.db.backend.postgres.metadata.load", "database")));
+			this.foreignKeyValuesCache = new ForeignKeyValuesCache(
+				Integer.parseInt(props.getProperty(
+					"dbw.db.backend.postgres.fkcache.size", "100000")));
+			this.saveMode = SaveMode.valueOf(props.getProperty(
+				"dbw.db.backend.postgres.savemode", "conditional"));
+			this.fetchSize = Integer.parseInt(props.getProperty(
+				"dbw.db.backend.postgres.fetchsize", "500"));
+			this.copyCommitInterval = Integer.parseInt(props.getProperty(
+				"dbw.db.backend.postgres.copy.commitinterval", "10000"));
+			this.queryTimeout = Integer.parseInt(props.getProperty(
+				"dbw.db.backend.postgres.query.timeout", "0"));
+			this.queryMaxRows = Integer.parseInt(props.getProperty(
+				"dbw.db.backend.postgres.query.maxrows", "0"));
+			this.queryMaxBytes = Long.parseLong(props.getProperty(
+				"dbw.db.backend.postgres.query.maxbytes", "0"));
+			this.snapshot = Boolean.parseBoolean(props.getProperty(
+				"dbw.db.backend.postgres.session.snapshot", "false"));
+			for (String replica : StringUtils.split(
+				props.getProperty("dbw.db.backend.postgres.replicas", ""), ",")) {
+				if (!StringUtils.isBlank(replica)) {
+					this.replicas.add(replica.contains(":") ? replica.trim() : replica
+						.trim() + ":" + this.port);
+				}
+			}
+			this.stickiness = Integer.parseInt(props.getProperty(
+				"dbw.db.backend.postgres.replicas.stickiness", "10")) * 1000L;
+			this.replicaRetry = Integer.parseInt(props.getProperty(
+				"dbw.db.backend.postgres.replicas.retry", "30")) * 1000L;
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
 			IOUtils.closeQuietly(resourceAsStream);
 		}
+		Metrics.getInstance().addSource("pool", new Metrics.Source() {
+			@Override
+			public Map<String, Long> getStatistics() {
+				return PostgresBackend.this.pool.getStatistics().get("total").toMap();
+			}
+		});
+		Metrics.getInstance().addSource("fkcache", new Metrics.Source() {
+			@Override
+			public Map<String, Long> getStatistics() {
+				return PostgresBackend.this.foreignKeyValuesCache.getStatistics();
+			}
+		});
 	}
 
-	private synchronized void logString(final String message, final String user)
-		throws BackendException {
-		FileWriter fw = null;
+	void logString(final String message, final String user) {
+		AsyncLog.getInstance().log(this.logFile,
+			String.format("%s: %s: %s", new Date().toString(), user, message));
+	}
+
+	private String getUrl(final String hostAndPort, final String db) {
+		return String.format("jdbc:postgresql://%s/%s?charSet=UTF-8", hostAndPort,
+			this.getPlainDatabaseName(db));
+	}
+
+	/**
+	 * connects to the primary
+	 */
+	private Connection connectToDB(final String user, final String password,
+		final String db) throws SQLException {
+		return this.borrow(this.getUrl(this.host + ":" + this.port, db), user,
+			password);
+	}
+
+	private Connection borrow(final String url, final String user,
+		final String password) throws SQLException {
+		long start = System.nanoTime();
+		boolean failed = true;
 		try {
-			fw = new FileWriter(this.logFile, true);
-			IOUtils
-				.write(
-					String.format("%s: %s: %s\n", new Date().toString(), user, message),
-					fw);
-		} catch (IOException e) {
-			throw new BackendException(String.format("Cannot write to log file %s.",
-				this.logFile.getAbsoluteFile()));
+			Connection conn = this.pool.getConnection(url, user, password);
+			failed = false;
+			return conn;
 		} finally {
-			IOUtils.closeQuietly(fw);
+			Metrics.getInstance().getOperation("postgres.connect", null)
+				.record(start, failed);
 		}
 	}
 
-	private Connection connectToDB(final String user, final String password,
-		final String db) throws SQLException, ClassNotFoundException {
-		Class.forName("org.postgresql.Driver");
-		return DriverManager.getConnection(
-			String.format("jdbc:postgresql://%s:%s/%s?charSet=UTF-8", this.host, this.port,
-				this.getPlainDatabaseName(db)), user, password);
+	/**
+	 * connects to the primary and sends the reads of the user there for the
+	 * next dbw.db.backend.postgres.replicas.stickiness seconds, so that they see
+	 * the write even if the replicas lag behind
+	 */
+	private Connection connectForWrite(final String user, final String password,
+		final String db) throws SQLException {
+		if (!this.replicas.isEmpty()) {
+			this.lastWrites.put(String.valueOf(user), System.currentTimeMillis());
+		}
+		return this.connectToDB(user, password, db);
+	}
+
+	/**
+	 * connects for reading, within a shared {@link QueryContext} all reads of a
+	 * user and database go through the same {@link PostgresSession}
+	 */
+	private Connection connectForRead(final String user, final String password,
+		final String db) throws SQLException {
+		QueryContext context = QueryContext.current();
+		if (context == null || !context.isShared()) {
+			return this.connectToReadHost(user, password, db);
+		}
+		String key = "postgres\u0000" + System.identityHashCode(this) + "\u0000"
+			+ user + "\u0000" + this.getPlainDatabaseName(db);
+		PostgresSession session = (PostgresSession) context.getResource(key);
+		if (session == null) {
+			Connection conn = this.connectToReadHost(user, password, db);
+			try {
+				session = new PostgresSession(conn, this.snapshot);
+			} catch (SQLException e) {
+				DbUtils.closeQuietly(conn);
+				throw e;
+			}
+			context.putResource(key, session);
+		}
+		return session.getConnection();
+	}
+
+	/**
+	 * sets a savepoint on a shared connection, so that a failing read does not
+	 * abort the transaction the other reads of the page go on with
+	 */
+	private Savepoint setSavepoint(final Connection conn) throws SQLException {
+		return PostgresSession.isShared(conn) ? conn.setSavepoint() : null;
+	}
+
+	/**
+	 * rolls back to the savepoint after an error, releases it otherwise
+	 */
+	private void endSavepoint(final Connection conn, final Savepoint savepoint,
+		final boolean failed) {
+		if (savepoint == null) {
+			return;
+		}
+		try {
+			if (failed) {
+				conn.rollback(savepoint);
+			}
+			conn.releaseSavepoint(savepoint);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * connects to the replicas in turn, skipping those that could not be reached
+	 * recently, or to the primary if there are none or the user has written
+	 * recently
+	 */
+	private Connection connectToReadHost(final String user,
+		final String password, final String db) throws SQLException {
+		if (this.replicas.isEmpty()) {
+			return this.connectToDB(user, password, db);
+		}
+		long now = System.currentTimeMillis();
+		Long lastWrite = this.lastWrites.get(String.valueOf(user));
+		if (lastWrite != null) {
+			if (now - lastWrite < this.stickiness) {
+				return this.connectToDB(user, password, db);
+			}
+			this.lastWrites.remove(String.valueOf(user), lastWrite);
+		}
+		int start = this.nextReplica.getAndIncrement();
+		for (int i = 0; i < this.replicas.size(); i++) {
+			String replica = this.replicas.get(Math.abs((start + i)
+				% this.replicas.size()));
+			Long downUntil = this.replicasDownUntil.get(replica);
+			if (downUntil != null && downUntil > now) {
+				continue;
+			}
+			try {
+				return this.borrow(this.getUrl(replica, db), user, password);
+			} catch (SQLException e) {
+				if (!StringUtils.startsWith(e.getSQLState(), "08")) {
+					throw e;
+				}
+				// not reachable, try the others and leave this one alone for a while
+				this.replicasDownUntil.put(replica, now + this.replicaRetry);
+			}
+		}
+		return this.connectToDB(user, password, db);
+	}
+
+	public ConnectionPool getConnectionPool() {
+		return this.pool;
+	}
+
+	public SchemaCache getSchemaCache() {
+		return this.schemaCache;
+	}
+
+	public ForeignKeyValuesCache getForeignKeyValuesCache() {
+		return this.foreignKeyValuesCache;
+	}
+
+	/**
+	 * closes the pooled connections, called when the application stops
+	 */
+	@Override
+	public void close() {
+		this.pool.close();
+	}
+
+	private void tableWritten(final String db, final String table) {
+		this.foreignKeyValuesCache.invalidate(this.getPlainDatabaseName(db),
+			this.getSchemaName(table, db), this.getPlainTableName(table));
+	}
+
+	/**
+	 * row changes only affect the foreign key values, the metadata is reloaded
+	 * if the whole database is invalidated
+	 */
+	@Override
+	public void invalidate(final String db, final String schema,
+		final String table, final String name) {
+		if (table == null) {
+			this.schemaCache.invalidate(this.getPlainDatabaseName(db));
+			this.pool.clearStatements();
+			this.foreignKeyValuesCache.invalidate(this.getPlainDatabaseName(db));
+		} else {
+			this.foreignKeyValuesCache.invalidate(this.getPlainDatabaseName(db),
+				schema, table);
+		}
+	}
+
+	/**
+	 * fills the pools of the primary and the replicas for the user and loads the
+	 * metadata of all tables of the database with one query
+	 */
+	@Override
+	public void warmUp(final String user, final String password,
+		final String db) throws BackendException {
+		Connection conn = null;
+		try {
+			this.pool.prime(this.getUrl(this.host + ":" + this.port, db), user,
+				password);
+			for (String replica : this.replicas) {
+				try {
+					this.pool.prime(this.getUrl(replica, db), user, password);
+				} catch (SQLException e) {
+					// the reads fall back to the primary until it is reachable
+					e.printStackTrace();
+				}
+			}
+			conn = this.connectToDB(user, password, db);
+			this.schemaCache.loadDatabase(conn, this.getPlainDatabaseName(db));
+		} catch (SQLException e) {
+			throw new BackendException(e);
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * installs the trigger notifying {@link PostgresInvalidationBus} on changes
+	 * of the table
+	 */
+	public void installInvalidationTrigger(final String user,
+		final String password, final String db, final String table)
+		throws BackendException {
+		Connection conn = null;
+		try {
+			conn = this.connectToDB(user, password, db);
+			String nameField = this.getNameField(conn, table, db);
+			this.logString("install invalidation trigger on " + table, user);
+			PostgresInvalidationBus.installTrigger(conn,
+				this.getSchemaName(table, db), this.getPlainTableName(table),
+				nameField);
+		} catch (SQLException e) {
+			throw new BackendException(e);
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
 	}
 
 	private String getSchemaName(final String table, final String database) {
@@ -144,219 +589,275 @@ public class PostgresBackend implements Backend {
 		}
 	}
 
-	private int getNumRows(final ResultSet rs) throws SQLException {
-		if (!rs.last()) {
-			return 0;
+	private TableMetadata getMetadata(final Connection conn, final String table,
+		final String db) throws BackendException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		TableMetadata metadata;
+		try {
+			metadata = this.schemaCache.get(conn, this.getPlainDatabaseName(db),
+				this.getSchemaName(table, db), this.getPlainTableName(table));
+			failed = false;
+		} finally {
+			Metrics.getInstance().getOperation("postgres.metadata", null)
+				.record(start, failed);
 		}
-		int result = rs.getRow();
-		rs.beforeFirst();
-		return result;
+		if (metadata == null || metadata.getColumns().isEmpty()) {
+			throw new BackendException(String.format(
+				"Table %s.%s has no columns which is not supported.",
+				this.getSchemaName(table, db), this.getPlainTableName(table)));
+		}
+		return metadata;
 	}
 
 	private String getNameField(final Connection conn, final String table,
 		final String db) throws BackendException {
-		Statement st = null;
-		ResultSet rs = null;
-		String result = null;
+		String result = this.getMetadata(conn, table, db).getNameField();
+		if (result == null) {
+			throw new BackendException(
+				String
+					.format(
+						"Table %s.%s has no or a multi column primary key which is not supported.",
+						this.getSchemaName(table, db), this.getPlainTableName(table)));
+		}
+		return result;
+	}
 
+	private Object parseDefault(final FieldType type, final String value) {
+		// mimics ResultSet.getXXX on information_schema.columns.column_default
 		try {
-			String schema = this.getSchemaName(table, db);
-			String plainTable = this.getPlainTableName(table);
-			st = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_READ_ONLY);
-
-			StringBuilder sb = new StringBuilder("");
-			sb.append("select k.column_name ");
-			sb.append(" from information_schema.table_constraints c ");
-			sb.append("  inner join information_schema.key_column_usage k ");
-			sb.append("   on c.constraint_catalog = k.constraint_catalog and ");
-			sb.append("      c.constraint_schema = k.constraint_schema and ");
-			sb.append("      c.constraint_name = k.constraint_name ");
-			sb.append(" where c.constraint_type='PRIMARY KEY' and ");
-			sb.append("       c.table_name='%s' and ");
-			sb.append("       c.table_schema='%s'");
-			String queryString = String.format(sb.toString().replaceAll("[ ]+", " "),
-				plainTable, schema);
-
-			this.logString(queryString, "?");
-			rs = st.executeQuery(queryString);
-			if (this.getNumRows(rs) != 1) {
-				throw new BackendException(
-					String
-						.format(
-							"Table %s.%s has no or a multi column primary key which is not supported.",
-							this.getSchemaName(table, db), this.getPlainTableName(table)));
+			if (type == FieldType.dec) {
+				return value == null ? 0 : Integer.valueOf(value.trim());
+			} else if (type == FieldType.num) {
+				return value == null ? 0.0 : Double.valueOf(value.trim());
+			} else if (type == FieldType.date) {
+				return value == null ? null : java.sql.Date.valueOf(value.trim());
+			}
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		return value;
+	}
+
+	private PostgresField.AllowedValuesLoader<Object> getAllowedValuesLoader(
+		final String user, final String password, final String db,
+		final TableMetadata.Column column) {
+		return new PostgresField.AllowedValuesLoader<Object>() {
+			@Override
+			public List<Object> load() throws BackendException {
+				return PostgresBackend.this.getAllowedValues(user, password, db,
+					column.getForeignSchema(), column.getForeignTable(),
+					column.getForeignColumn());
+			}
+		};
+	}
+
+	private List<Object> getAllowedValues(final String user,
+		final String password, final String db, final String schema,
+		final String table, final String column) throws BackendException {
+		String plainDb = this.getPlainDatabaseName(db);
+		List<Object> result = this.foreignKeyValuesCache.get(user, plainDb, schema,
+			table, column);
+		if (result != null) {
+			return result;
+		}
+		Connection conn = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		result = new ArrayList<Object>();
+		try {
+			conn = this.connectForRead(user, password, db);
+			String queryString = String.format(
+				"select distinct \"%s\" from \"%s\".\"%s\" order by \"%s\"",
+				column, schema, table, column);
+			this.logString(queryString, user);
+			st = conn.prepareStatement(queryString);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				result.add(rs.getObject(1));
 			}
-			rs.next();
-			result = rs.getString(1);
 		} catch (SQLException e) {
 			throw new BackendException(e);
 		} finally {
 			DbUtils.closeQuietly(rs);
 			DbUtils.closeQuietly(st);
+			DbUtils.closeQuietly(conn);
 		}
+		this.foreignKeyValuesCache.put(user, plainDb, schema, table, column,
+			result);
 		return result;
 	}
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	private PostgresDocument createEmptyDocument(final Connection conn,
-		final String table, final String name, final String db)
-		throws BackendException {
-		Statement st = null;
-		Statement st2 = null;
-		ResultSet rs = null;
-		ResultSet rs2 = null;
+		final String user, final String password, final String table,
+		final String name, final String db) throws BackendException {
 		PostgresDocument doc = new PostgresDocument();
 		doc.setTable(this.getSchemaName(table, db) + "."
 			+ this.getPlainTableName(table));
 		doc.setDatabase(db);
 		doc.setName(name);
-		try {
-			String schema = this.getSchemaName(table, db);
-			String plainTable = this.getPlainTableName(table);
-			st = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_READ_ONLY);
-
-			StringBuilder sb = new StringBuilder("");
-			sb.append("select c.column_name, c.column_default, c.data_type, ccu.table_name, ccu.column_name");
-			sb.append("  from information_schema.columns c");
-			sb.append("  left join information_schema.key_column_usage kcu");
-			sb.append("    on kcu.table_schema = c.table_schema and kcu.table_name = c.table_name");
-			sb.append("     and kcu.column_name = c.column_name");
-			sb.append("  left join information_schema.table_constraints tc");
-			sb.append("    on tc.constraint_type='FOREIGN KEY' and tc.table_schema = c.table_schema");
-			sb.append("     and tc.table_name = c.table_name and tc.constraint_name = kcu.constraint_name");
-			sb.append("  left join information_schema.constraint_column_usage ccu");
-			sb.append("    on ccu.constraint_schema = tc.constraint_schema and ccu.constraint_name = tc.constraint_name");
-			sb.append("  where c.table_schema='%s' and c.table_name='%s'");
-			sb.append("  order by c.ordinal_position");
-			String queryString = String.format(sb.toString().replaceAll("[ ]+", " "),
-				schema, plainTable);
-
-			this.logString(queryString, "?");
-			rs = st.executeQuery(queryString);
-			if (this.getNumRows(rs) == 0) {
-				throw new BackendException(String.format(
-					"Table %s.%s has no columns which is not supported.",
-					this.getSchemaName(table, db), this.getPlainTableName(table)));
+		TableMetadata metadata = this.getMetadata(conn, table, db);
+		String nameField = this.getNameField(conn, table, db);
+		for (TableMetadata.Column column : metadata.getColumns()) {
+			String ctype = column.getDataType();
+			String cname = column.getName();
+			PostgresField field = null;
+			if ("character varying".equals(ctype)) {
+				field = new PostgresField<String>();
+				field.setType(FieldType.string);
+			} else if ("text".equals(ctype)) {
+				field = new PostgresField<String>();
+				field.setType(FieldType.text);
+			} else if ("integer".equals(ctype) || "bigint".equals(ctype)
+				|| "smallint".equals(ctype) || "real".equals(ctype)) {
+				field = new PostgresField<Integer>();
+				field.setType(FieldType.dec);
+			} else if ("numeric".equals(ctype)) {
+				field = new PostgresField<Double>();
+				field.setType(FieldType.num);
+			} else if ("date".equals(ctype)) {
+				field = new PostgresField<Date>();
+				field.setType(FieldType.date);
 			}
-
-			String nameField = this.getNameField(conn, table, db);
-			while (rs.next()) {
-				String ctype = rs.getString(3);
-				String cname = rs.getString(1);
-				PostgresField field = null;
-				if ("character varying".equals(ctype)) {
-					field = new PostgresField<String>();
-					field.setType(FieldType.string);
-					field.setValue(rs.getString(2));
-				} else if ("text".equals(ctype)) {
-					field = new PostgresField<String>();
-					field.setType(FieldType.text);
-					field.setValue(rs.getString(2));
-				} else if ("integer".equals(ctype) || "bigint".equals(ctype)
-					|| "smallint".equals(ctype) || "real".equals(ctype)) {
-					field = new PostgresField<Integer>();
-					field.setType(FieldType.dec);
-					field.setValue(rs.getInt(2));
-				} else if ("numeric".equals(ctype)) {
-					field = new PostgresField<Double>();
-					field.setType(FieldType.num);
-					field.setValue(rs.getDouble(2));
-				} else if ("date".equals(ctype)) {
-					field = new PostgresField<Date>();
-					field.setType(FieldType.date);
-					field.setValue(rs.getDate(2));
+			if (field != null) {
+				field.setValue(this.parseDefault(field.getType(),
+					column.getDefaultValue()));
+				field.setName(cname);
+				field.setUsage(FieldUsage.normal);
+				if (nameField.equals(cname)) {
+					field.setValue(name);
+				} else if ("version".equals(cname)) {
+					field.setUsage(FieldUsage.hidden);
 				}
-				if (field != null) {
-					field.setName(cname);
-					field.setUsage(FieldUsage.normal);
-					if (nameField.equals(cname)) {
-						field.setValue(name);
-					} else if ("version".equals(cname)) {
-						field.setUsage(FieldUsage.hidden);
-					}
 
-					String foreignTable = rs.getString(4);
-					String foreignColumn = rs.getString(5);
-					if (!StringUtils.isEmpty(foreignTable)
-						&& !StringUtils.isEmpty(foreignColumn)) {
-						st2 = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-							ResultSet.CONCUR_READ_ONLY);
-						field.setUsage(FieldUsage.fixed);
-						StringBuilder sb2 = new StringBuilder();
-						sb2.append("select distinct \"%s\" from \"%s\" order by \"%s\"");
-						String queryString2 = String.format(
-							sb2.toString().replaceAll("[ ]+", " "), foreignColumn,
-							foreignTable, foreignColumn);
-						this.logString(queryString2, "?");
-						rs2 = st2.executeQuery(queryString2);
-						while (rs2.next()) {
-							field.getAllowedValues().add(rs2.getObject(1));
-						}
-					}
-					doc.addField(cname, field);
+				if (column.isForeignKey()) {
+					field.setUsage(FieldUsage.fixed);
+					field.setAllowedValuesLoader(this.getAllowedValuesLoader(user,
+						password, db, column));
 				}
+				doc.addField(cname, field);
 			}
-		} catch (SQLException e) {
-			throw new BackendException(e);
-		} finally {
-			DbUtils.closeQuietly(rs);
-			DbUtils.closeQuietly(rs2);
-			DbUtils.closeQuietly(st);
-			DbUtils.closeQuietly(st2);
 		}
 		return doc;
 	}
 
-	@SuppressWarnings({ "rawtypes" })
-	private String getUpdateStatement(final Document document, final String name,
+	/**
+	 * binds a document name, which may be the value of a column of any type.
+	 * Sent untyped, so the server casts it like a quoted literal.
+	 */
+	private void bindName(final PreparedStatement st, final int index,
+		final String name) throws SQLException {
+		st.setObject(index, name, Types.OTHER);
+	}
+
+	/**
+	 * binds a field value according to the field type. Values usually are
+	 * strings when they come from a form, these are converted here. Strings that
+	 * cannot be converted are sent untyped and left to the server to reject.
+	 */
+	private void bindField(final PreparedStatement st, final int index,
+		final Field<?> field) throws SQLException {
+		Object value = field.getValue();
+		if (value == null) {
+			st.setNull(index, Types.OTHER);
+			return;
+		}
+		try {
+			switch (field.getType()) {
+			case string:
+			case text:
+				st.setString(index, value.toString());
+				return;
+			case date:
+				if (value instanceof Date) {
+					st.setDate(index, new java.sql.Date(((Date) value).getTime()));
+				} else {
+					st.setDate(index, java.sql.Date.valueOf(value.toString().trim()));
+				}
+				return;
+			case dec:
+				if (value instanceof Integer || value instanceof Long
+					|| value instanceof Short || value instanceof Byte) {
+					st.setLong(index, ((Number) value).longValue());
+				} else if (value instanceof Number) {
+					// setLong would cut off the fraction of e.g. a Double
+					st.setBigDecimal(index, new BigDecimal(value.toString()));
+				} else {
+					st.setLong(index, Long.parseLong(value.toString().trim()));
+				}
+				return;
+			case num:
+				st.setBigDecimal(index, new BigDecimal(value.toString().trim()));
+				return;
+			}
+		} catch (IllegalArgumentException e) {
+			// fall through to the untyped binding
+		}
+		st.setObject(index, value.toString(), Types.OTHER);
+	}
+
+	private String getUpdateStatement(final List<Field<?>> fields,
 		final String table, final String nameField, final String db) {
 		StringBuilder sb = new StringBuilder(String.format(
 			"update \"%s\".\"%s\" set ", this.getSchemaName(table, db),
 			this.getPlainTableName(table)));
 		boolean isFirst = true;
-		for (String fieldName : document.getAllFields().keySet()) {
-			Field field = document.getAllFields().get(fieldName);
-			if (field.getValue() == null) {
-				continue;
-			}
+		for (Field<?> field : fields) {
 			if (isFirst) {
 				isFirst = false;
 			} else {
 				sb.append(",");
 			}
-			sb.append("\"").append(field.getName()).append("\" = '");
-			sb.append(
-				field.getValue().toString().replace("'", "''"))
-				.append("'");
+			sb.append("\"").append(field.getName()).append("\" = ?");
 		}
-		sb.append(String.format(" where \"%s\" = '%s'", nameField, name));
+		sb.append(String.format(" where \"%s\" = ?", nameField));
 		return sb.toString();
 	}
 
-	@SuppressWarnings("rawtypes")
-	private String getInsertStatement(final Document document, final String name,
-		final String table, final String nameField, final String db) {
+	private String getInsertStatement(final List<Field<?>> fields,
+		final String table, final String db) {
 		StringBuilder sb = new StringBuilder(String.format(
 			"insert into \"%s\".\"%s\" ", this.getSchemaName(table, db),
 			this.getPlainTableName(table)));
-		List<String> nameList = new LinkedList<String>();
-		List<String> valueList = new LinkedList<String>();
-		for (String fieldName : document.getAllFields().keySet()) {
-			Field field = document.getAllFields().get(fieldName);
-			if (field == null) {
-				continue;
+		sb.append("(").append(StringUtils.join(this.getQuotedNames(fields), ","))
+			.append(") values (");
+		sb.append(StringUtils.repeat("?", ",", fields.size())).append(")");
+		return sb.toString();
+	}
+
+	private List<String> getQuotedNames(final List<Field<?>> fields) {
+		List<String> result = new LinkedList<String>();
+		for (Field<?> field : fields) {
+			result.add("\"" + field.getName() + "\"");
+		}
+		return result;
+	}
+
+	/**
+	 * @return the fields written by an update (all with a value) or an insert
+	 *         (all)
+	 */
+	private List<Field<?>> getFieldsToWrite(final Document document,
+		final boolean withNullValues) {
+		List<Field<?>> result = new ArrayList<Field<?>>();
+		for (Field<?> field : document.getAllFields().values()) {
+			if (field != null && (withNullValues || field.getValue() != null)) {
+				result.add(field);
 			}
-			nameList.add("\"" + field.getName() + "\"");
-			valueList.add((field.getValue() == null) ? "null"
-				: ("'"
-					+ field.getValue().toString().replace("\\", "\\\\")
-						.replace("'", "''") + "'"));
 		}
-		sb.append("(").append(StringUtils.join(nameList, ",")).append(") values (");
-		sb.append(StringUtils.join(valueList, ",")).append(")");
-		return sb.toString();
+		return result;
+	}
+
+	private String describeValues(final List<Field<?>> fields, final String name) {
+		List<Object> values = new ArrayList<Object>();
+		for (Field<?> field : fields) {
+			values.add(field.getValue());
+		}
+		if (name != null) {
+			values.add(name);
+		}
+		return values.toString();
 	}
 
 	@Override
@@ -364,21 +865,20 @@ public class PostgresBackend implements Backend {
 		final String db, final String table, final String name)
 		throws BackendException {
 		Connection conn = null;
-		Statement st = null;
+		PreparedStatement st = null;
 		try {
-			conn = this.connectToDB(user, password, db);
-			st = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_UPDATABLE);
+			conn = this.connectForWrite(user, password, db);
 			String queryString = String.format(
-				"delete from \"%s\".\"%s\" where \"%s\"='%s'",
+				"delete from \"%s\".\"%s\" where \"%s\" = ?",
 				this.getSchemaName(table, db), this.getPlainTableName(table),
-				this.getNameField(conn, table, db), name);
-			this.logString(queryString, "?");
-			st.executeUpdate(queryString);
+				this.getNameField(conn, table, db));
+			this.logString(queryString + " -- " + name, user);
+			st = conn.prepareStatement(queryString);
+			this.bindName(st, 1, name);
+			st.executeUpdate();
+			this.tableWritten(db, table);
 		} catch (SQLException e) {
 			throw new BackendException(e);
-		} catch (ClassNotFoundException e) {
-			throw new BackendException(e);
 		} finally {
 			DbUtils.closeQuietly(st);
 			DbUtils.closeQuietly(conn);
@@ -399,21 +899,25 @@ public class PostgresBackend implements Backend {
 		final boolean allowEmpty, final Map<String, String[]> defaultFieldValues)
 		throws BackendException {
 		Connection conn = null;
-		Statement st = null;
+		Savepoint savepoint = null;
+		boolean failed = false;
+		PreparedStatement st = null;
 		ResultSet rs = null;
 		try {
-			conn = this.connectToDB(user, password, db);
-			PostgresDocument doc = this.createEmptyDocument(conn, table, name, db);
+			conn = this.connectForRead(user, password, db);
+			savepoint = this.setSavepoint(conn);
+			PostgresDocument doc = this.createEmptyDocument(conn, user,
+				password, table, name, db);
 			String nameField = this.getNameField(conn, table, db);
-			st = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_READ_ONLY);
 			String queryString = String.format(
-				"select * from \"%s\".\"%s\" where \"%s\"='%s'",
+				"select * from \"%s\".\"%s\" where \"%s\" = ?",
 				this.getSchemaName(table, db), this.getPlainTableName(table),
-				nameField, name);
-			this.logString(queryString, user);
-			rs = st.executeQuery(queryString);
-			if (this.getNumRows(rs) == 0) {
+				nameField);
+			this.logString(queryString + " -- " + name, user);
+			st = conn.prepareStatement(queryString);
+			this.bindName(st, 1, name);
+			rs = st.executeQuery();
+			if (!rs.next()) {
 				if (allowEmpty) {
 					if (defaultFieldValues != null) {
 						for (String key : defaultFieldValues.keySet()) {
@@ -446,76 +950,310 @@ public class PostgresBackend implements Backend {
 						this.getSchemaName(table, db), this.getPlainTableName(table)));
 				}
 			}
-			rs.next();
-			ResultSetMetaData md = rs.getMetaData();
-			for (int i = 1; i <= md.getColumnCount(); i++) {
-				Field field = doc.getAllFields().get(md.getColumnName(i));
-				if (field.getType() == FieldType.string
-					|| field.getType() == FieldType.text) {
-					field.setValue(rs.getString(i));
-				} else if (field.getType() == FieldType.date) {
-					field.setValue(rs.getDate(i));
-				} else if (field.getType() == FieldType.dec) {
-					field.setValue(rs.getInt(i));
-				} else if (field.getType() == FieldType.num) {
-					field.setValue(rs.getDouble(i));
-				}
-			}
+			this.readFields(doc, rs);
 			return doc;
 		} catch (SQLException e) {
+			failed = true;
 			throw new BackendException(e);
-		} catch (ClassNotFoundException e) {
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(st);
+			this.endSavepoint(conn, savepoint, failed);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void readFields(final PostgresDocument doc, final ResultSet rs)
+		throws SQLException {
+		ResultSetMetaData md = rs.getMetaData();
+		for (int i = 1; i <= md.getColumnCount(); i++) {
+			Field field = doc.getAllFields().get(md.getColumnName(i));
+			if (field == null) {
+				// a column added by the query, not one of the table
+				continue;
+			}
+			if (field.getType() == FieldType.string
+				|| field.getType() == FieldType.text) {
+				field.setValue(rs.getString(i));
+			} else if (field.getType() == FieldType.date) {
+				field.setValue(rs.getDate(i));
+			} else if (field.getType() == FieldType.dec) {
+				field.setValue(rs.getInt(i));
+			} else if (field.getType() == FieldType.num) {
+				field.setValue(rs.getDouble(i));
+			}
+		}
+	}
+
+	@Override
+	public Map<String, Document> getDocuments(final String user,
+		final String password, final String db, final String table,
+		final List<String> names) throws BackendException {
+		Map<String, Document> result = new LinkedHashMap<String, Document>();
+		for (String name : names) {
+			result.put(name, null);
+		}
+		if (result.isEmpty()) {
+			return result;
+		}
+		Connection conn = null;
+		Savepoint savepoint = null;
+		boolean failed = false;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		try {
+			conn = this.connectForRead(user, password, db);
+			savepoint = this.setSavepoint(conn);
+			TableMetadata metadata = this.getMetadata(conn, table, db);
+			String nameField = this.getNameField(conn, table, db);
+			// every row comes with the name as requested, e.g. "007" for 7, casting
+			// the requested names to the type of the name column keeps its index
+			// usable
+			String queryString = String.format(
+				"select t.*, r.dbw_requested"
+					+ " from unnest(cast(? as text[])) as r(dbw_requested)"
+					+ " join \"%s\".\"%s\" t on t.\"%s\" = cast(r.dbw_requested as %s)",
+				this.getSchemaName(table, db), this.getPlainTableName(table),
+				nameField, metadata.getColumn(nameField).getDataType());
+			this.logString(queryString + " -- " + result.keySet(), user);
+			st = conn.prepareStatement(queryString);
+			st.setArray(1, conn.createArrayOf("text", result.keySet().toArray()));
+			rs = st.executeQuery();
+			while (rs.next()) {
+				String name = rs.getString("dbw_requested");
+				PostgresDocument doc = this.createEmptyDocument(conn, user, password,
+					table, name, db);
+				this.readFields(doc, rs);
+				result.put(name, doc);
+			}
+			return result;
+		} catch (SQLException e) {
+			failed = true;
 			throw new BackendException(e);
 		} finally {
 			DbUtils.closeQuietly(rs);
 			DbUtils.closeQuietly(st);
+			this.endSavepoint(conn, savepoint, failed);
 			DbUtils.closeQuietly(conn);
 		}
 	}
 
+	/**
+	 * executes an insert or update built by getInsertStatement or
+	 * getUpdateStatement, nameField is null for inserts
+	 */
+	private void executeWrite(final Connection conn, final String statement,
+		final List<Field<?>> fields, final String nameField, final String name,
+		final String user) throws SQLException, BackendException {
+		PreparedStatement st = null;
+		try {
+			this.logString(
+				statement + " -- "
+					+ this.describeValues(fields, nameField == null ? null : name), user);
+			st = conn.prepareStatement(statement);
+			int index = 1;
+			for (Field<?> field : fields) {
+				this.bindField(st, index++, field);
+			}
+			if (nameField != null) {
+				this.bindName(st, index, name);
+			}
+			st.executeUpdate();
+		} finally {
+			DbUtils.closeQuietly(st);
+		}
+	}
+
+	private String getVersionConflictMessage(final String name,
+		final String table, final String db) {
+		return String
+			.format(
+				"There is a new version of the record with name '%s' in table '%s.%s', please repeat editing.",
+				name, this.getSchemaName(table, db), this.getPlainTableName(table));
+	}
+
+	/**
+	 * saves with a single conditional statement in the common case, see
+	 * {@link SaveMode}. The version field of the document is set to the version
+	 * returned by the database.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void saveInOneStatement(final Connection conn, final String user,
+		final String db, final String table, final String name,
+		final Document document) throws SQLException, BackendException {
+		TableMetadata metadata = this.getMetadata(conn, table, db);
+		String nameField = this.getNameField(conn, table, db);
+		Field versionField = document.getAllFields().get("version");
+		boolean checkVersion = versionField != null
+			&& versionField.getValue() != null;
+		String returning = versionField != null ? " returning \"version\"" : "";
+		List<Field<?>> allFields = this.getFieldsToWrite(document, true);
+		String tableName = String.format("\"%s\".\"%s\"",
+			this.getSchemaName(table, db), this.getPlainTableName(table));
+
+		String statement;
+		if (this.saveMode == SaveMode.upsert) {
+			List<String> updates = new LinkedList<String>();
+			for (Field<?> field : allFields) {
+				// like an update of the classic mode, null values do not overwrite
+				updates.add(String.format(
+					"\"%s\" = coalesce(excluded.\"%s\", dbw_target.\"%s\")",
+					field.getName(), field.getName(), field.getName()));
+			}
+			statement = String.format(
+				"insert into %s as dbw_target (%s) values (%s)"
+					+ " on conflict (\"%s\") do update set %s%s%s", tableName,
+				StringUtils.join(this.getQuotedNames(allFields), ","),
+				StringUtils.repeat("?", ",", allFields.size()), nameField,
+				StringUtils.join(updates, ","), checkVersion
+					? " where dbw_target.\"version\" = excluded.\"version\"" : "",
+				returning);
+			if (this.executeSave(conn, statement, allFields, null, null,
+				versionField, user) == 0) {
+				throw new BackendException(this.getVersionConflictMessage(name, table,
+					db));
+			}
+			return;
+		}
+
+		List<Field<?>> setFields = this.getFieldsToWrite(document, false);
+		statement = this.getUpdateStatement(setFields, table, nameField, db)
+			+ (checkVersion ? " and \"version\" = ?" : "") + returning;
+		int updated = this.executeSave(conn, statement, setFields, name,
+			checkVersion ? versionField : null, versionField, user);
+		if (updated > 1) {
+			throw new BackendException(
+				String
+					.format(
+						"There are more than two entries with the name '%s' in the table '%s.%s', something is wrong with the database design.",
+						name, this.getSchemaName(table, db), this.getPlainTableName(table)));
+		} else if (updated == 1) {
+			return;
+		}
+
+		// nothing updated, either a new document or a version conflict
+		List<String> valueList = new LinkedList<String>();
+		for (Field<?> field : allFields) {
+			TableMetadata.Column column = metadata.getColumn(field.getName());
+			valueList.add(column == null ? "?" : String.format("cast(? as %s)",
+				column.getDataType()));
+		}
+		statement = String.format(
+			"insert into %s (%s) select %s where not exists"
+				+ " (select 1 from %s where \"%s\" = ?)%s", tableName,
+			StringUtils.join(this.getQuotedNames(allFields), ","),
+			StringUtils.join(valueList, ","), tableName, nameField, returning);
+		if (this.executeSave(conn, statement, allFields, name, null,
+			versionField, user) == 0) {
+			throw new BackendException(this.getVersionConflictMessage(name, table,
+				db));
+		}
+	}
+
+	/**
+	 * binds the fields, then the name and the expected version if given and
+	 * executes the statement. If versionField is given the statement has to
+	 * return the new version which is set on this field.
+	 *
+	 * @return the number of written rows
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private int executeSave(final Connection conn, final String statement,
+		final List<Field<?>> fields, final String name, final Field expectedVersion,
+		final Field versionField, final String user) throws SQLException,
+		BackendException {
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		try {
+			List<Object> values = new ArrayList<Object>();
+			for (Field<?> field : fields) {
+				values.add(field.getValue());
+			}
+			if (name != null) {
+				values.add(name);
+			}
+			if (expectedVersion != null) {
+				values.add(expectedVersion.getValue());
+			}
+			this.logString(statement + " -- " + values, user);
+			st = conn.prepareStatement(statement);
+			int index = 1;
+			for (Field<?> field : fields) {
+				this.bindField(st, index++, field);
+			}
+			if (name != null) {
+				this.bindName(st, index++, name);
+			}
+			if (expectedVersion != null) {
+				this.bindField(st, index++, expectedVersion);
+			}
+			if (versionField == null) {
+				return st.executeUpdate();
+			}
+			rs = st.executeQuery();
+			int result = 0;
+			while (rs.next()) {
+				versionField.setValue(rs.getInt(1));
+				result++;
+			}
+			return result;
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(st);
+		}
+	}
+
 	@Override
 	public Document saveDocument(final String user, final String password,
 		final String db, final String table, final String name,
 		final Document document) throws BackendException {
-		Statement st = null;
+		PreparedStatement st = null;
 		Connection conn = null;
 		ResultSet rs = null;
 		try {
-			conn = this.connectToDB(user, password, db);
+			conn = this.connectForWrite(user, password, db);
+			if (this.saveMode != SaveMode.classic) {
+				this.saveInOneStatement(conn, user, db, table, name, document);
+				this.tableWritten(db, table);
+				return document;
+			}
 			String nameField = this.getNameField(conn, table, db);
-			st = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_READ_ONLY);
+			String schema = this.getSchemaName(table, db);
+			String plainTable = this.getPlainTableName(table);
 
-			rs = st.executeQuery(String.format(
-				"select count(*) from \"%s\".\"%s\" where \"%s\"='%s'",
-				this.getSchemaName(table, db), this.getPlainTableName(table),
-				nameField, name));
+			String queryString = String.format(
+				"select count(*) from \"%s\".\"%s\" where \"%s\" = ?", schema,
+				plainTable, nameField);
+			this.logString(queryString + " -- " + name, user);
+			st = conn.prepareStatement(queryString);
+			this.bindName(st, 1, name);
+			rs = st.executeQuery();
 			rs.next();
 			int numEntries = rs.getInt(1);
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(st);
 			if (numEntries > 1) {
 				throw new BackendException(
 					String
 						.format(
 							"There are more than two entries with the name '%s' in the table '%s.%s', something is wrong with the database design.",
-							name, this.getSchemaName(table, db),
-							this.getPlainTableName(table)));
+							name, schema, plainTable));
 			}
 			boolean isNewDocument = numEntries == 0 ? true : false;
 
-			String insertOrUpdate = isNewDocument ? this.getInsertStatement(document,
-				name, table, nameField, db) : this.getUpdateStatement(document, name,
-				table, nameField, db);
-			rs.close();
+			List<Field<?>> fields = this.getFieldsToWrite(document, isNewDocument);
+			String insertOrUpdate = isNewDocument ? this.getInsertStatement(fields,
+				table, db) : this.getUpdateStatement(fields, table, nameField, db);
 			if (!isNewDocument && document.getAllFields().containsKey("version")) {
 				conn.setAutoCommit(false);
-				st = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-					ResultSet.CONCUR_READ_ONLY);
-				String queryString = String.format(
-					"select version from \"%s\".\"%s\" where \"%s\"='%s'",
-					this.getSchemaName(table, db), this.getPlainTableName(table),
-					nameField, name);
-				this.logString(queryString, user);
-				rs = st.executeQuery(queryString);
+				queryString = String.format(
+					"select version from \"%s\".\"%s\" where \"%s\" = ? for update",
+					schema, plainTable, nameField);
+				this.logString(queryString + " -- " + name, user);
+				st = conn.prepareStatement(queryString);
+				this.bindName(st, 1, name);
+				rs = st.executeQuery();
 				rs.next();
 				if (rs.getInt(1) != (Integer) document.getAllFields().get("version")
 					.getValue()) {
@@ -524,21 +1262,20 @@ public class PostgresBackend implements Backend {
 						String
 							.format(
 								"There is a new version of the record with name '%s' in table '%s.%s', please repeat editing.",
-								name, this.getSchemaName(table, db),
-								this.getPlainTableName(table)));
+								name, schema, plainTable));
 				}
-				this.logString(insertOrUpdate, user);
-				st.executeUpdate(insertOrUpdate);
+				DbUtils.closeQuietly(rs);
+				DbUtils.closeQuietly(st);
+				this.executeWrite(conn, insertOrUpdate, fields, nameField, name, user);
 				conn.commit();
 				conn.setAutoCommit(true);
 			} else {
-				this.logString(insertOrUpdate, user);
-				st.executeUpdate(insertOrUpdate);
+				this.executeWrite(conn, insertOrUpdate, fields, isNewDocument ? null
+					: nameField, name, user);
 			}
+			this.tableWritten(db, table);
 		} catch (SQLException e) {
 			throw new BackendException(e);
-		} catch (ClassNotFoundException e) {
-			throw new BackendException(e);
 		} finally {
 			DbUtils.closeQuietly(rs);
 			DbUtils.closeQuietly(st);
@@ -547,38 +1284,103 @@ public class PostgresBackend implements Backend {
 		return document;
 	}
 
+	private static ArrayRow.Columns getColumns(final ResultSet rs)
+		throws SQLException {
+		ResultSetMetaData metaData = rs.getMetaData();
+		String[] names = new String[metaData.getColumnCount()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = metaData.getColumnName(i + 1);
+		}
+		return new ArrayRow.Columns(names);
+	}
+
+	/**
+	 * rough size of a value as read by the driver, used for the maxbytes limit
+	 */
+	private static long estimateSize(final Object value) {
+		if (value == null) {
+			return 0;
+		} else if (value instanceof String) {
+			return 2L * ((String) value).length();
+		} else if (value instanceof byte[]) {
+			return ((byte[]) value).length;
+		}
+		return 16;
+	}
+
 	@Override
 	public List<Row> executeQuery(final String user, final String password,
 		final String db, final String query) throws BackendException {
-		Statement st = null;
+		List<Row> result = new ArrayList<Row>();
+		RowIterator rows = this.iterateQuery(user, password, db, query);
+		try {
+			while (rows.hasNext()) {
+				result.add(rows.next());
+			}
+		} catch (IllegalStateException e) {
+			if (e.getCause() instanceof BackendException) {
+				throw (BackendException) e.getCause();
+			}
+			throw e;
+		} finally {
+			rows.close();
+		}
+		return result;
+	}
+
+	/**
+	 * runs the query with the limits of the current {@link QueryContext} or the
+	 * configured defaults. The timeout is set as statement_timeout for the
+	 * transaction of the query as the driver does not implement
+	 * setQueryTimeout.
+	 */
+	@Override
+	public RowIterator iterateQuery(final String user, final String password,
+		final String db, final String query) throws BackendException {
+		QueryContext context = QueryContext.current();
+		int timeout = this.queryTimeout;
+		int maxRows = this.queryMaxRows;
+		long maxBytes = this.queryMaxBytes;
+		if (context != null) {
+			if (context.isCancelled()) {
+				throw new BackendException("The query was cancelled.");
+			}
+			timeout = context.getTimeout() > 0 ? context.getTimeout() : timeout;
+			maxRows = context.getMaxRows() > 0 ? context.getMaxRows() : maxRows;
+			maxBytes = context.getMaxBytes() > 0 ? context.getMaxBytes() : maxBytes;
+		}
+		PreparedStatement st = null;
 		Connection conn = null;
-		ResultSet rs = null;
-		List<Row> result = new LinkedList<Row>();
 		try {
-			conn = this.connectToDB(user, password, db);
-			st = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_READ_ONLY);
+			conn = this.connectForRead(user, password, db);
 			this.logString(query.trim(), user);
-			rs = st.executeQuery(query.trim());
-			while (rs.next()) {
-				Row row = new PostgresRow();
-				ResultSetMetaData metaData = rs.getMetaData();
-				for (int i = 1; i <= metaData.getColumnCount(); i++) {
-					row.getFields().add(rs.getObject(i));
-					row.getFieldsByName().put(metaData.getColumnName(i), rs.getObject(i));
+			// the driver only fetches in chunks inside a transaction
+			conn.setAutoCommit(false);
+			// a shared transaction keeps the timeout of the previous query
+			if (timeout > 0 || PostgresSession.isShared(conn)) {
+				Statement timeoutSt = conn.createStatement();
+				try {
+					timeoutSt.execute(String.format("set local statement_timeout = %d",
+						timeout * 1000L));
+				} finally {
+					DbUtils.closeQuietly(timeoutSt);
 				}
-				result.add(row);
+			}
+			st = conn.prepareStatement(query.trim());
+			st.setFetchSize(this.fetchSize);
+			if (maxRows > 0) {
+				// one more to tell an exceeded limit from an exact match
+				st.setMaxRows(maxRows + 1);
 			}
 		} catch (SQLException e) {
-			throw new BackendException(e);
-		} catch (ClassNotFoundException e) {
-			throw new BackendException(e);
-		} finally {
-			DbUtils.closeQuietly(rs);
 			DbUtils.closeQuietly(st);
 			DbUtils.closeQuietly(conn);
+			throw new BackendException(e);
 		}
-		return result;
+		PostgresRowIterator rows = new PostgresRowIterator(conn, st, context,
+			maxRows, maxBytes);
+		rows.execute();
+		return rows;
 	}
 
 	@Override
@@ -587,45 +1389,130 @@ public class PostgresBackend implements Backend {
 		Statement st = null;
 		Connection conn = null;
 		try {
-			conn = this.connectToDB(user, password, db);
-			st = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_READ_ONLY);
+			conn = this.connectForWrite(user, password, db);
+			// not prepared, buttons may send several statements at once
+			st = conn.createStatement();
 			this.logString(statement.trim(), user);
 			st.executeUpdate(statement.trim());
 		} catch (SQLException e) {
 			throw new BackendException(e);
-		} catch (ClassNotFoundException e) {
-			throw new BackendException(e);
 		} finally {
 			DbUtils.closeQuietly(st);
 			DbUtils.closeQuietly(conn);
+			// arbitrary SQL may have changed any table, DDL can hide behind a
+			// comment or follow other statements, and prepared plans fail once the
+			// result type of a table changed
+			this.schemaCache.invalidate(this.getPlainDatabaseName(db));
+			this.pool.clearStatements();
+			this.foreignKeyValuesCache.invalidate(this.getPlainDatabaseName(db));
+		}
+	}
+
+	@Override
+	public long exportTable(final String user, final String password,
+		final String db, final String table, final BulkFormat format,
+		final Writer out) throws BackendException {
+		Connection conn = null;
+		try {
+			conn = this.connectForRead(user, password, db);
+			String statement = String.format("copy \"%s\".\"%s\" to stdout%s",
+				this.getSchemaName(table, db), this.getPlainTableName(table),
+				format == BulkFormat.csv ? " with csv header" : "");
+			this.logString(statement, user);
+			return ((PGConnection) conn).getCopyAPI().copyOut(statement, out);
+		} catch (SQLException e) {
+			throw new BackendException(e);
+		} catch (IOException e) {
+			throw new BackendException(e);
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	@Override
+	public long importTable(final String user, final String password,
+		final String db, final String table, final BulkFormat format,
+		final Reader in, final ImportListener listener) throws BackendException {
+		Connection conn = null;
+		long total = 0;
+		try {
+			conn = this.connectForWrite(user, password, db);
+			CopyRecordReader records = new CopyRecordReader(in,
+				format == BulkFormat.csv);
+			String columns = "";
+			if (format == BulkFormat.csv) {
+				String header = records.readRecord();
+				if (header == null) {
+					return 0;
+				}
+				List<String> names = new LinkedList<String>();
+				for (String name : CopyRecordReader.splitCsv(header)) {
+					names.add("\"" + name.replace("\"", "\"\"") + "\"");
+				}
+				columns = " (" + StringUtils.join(names, ",") + ")";
+			}
+			String statement = String.format("copy \"%s\".\"%s\"%s from stdin%s",
+				this.getSchemaName(table, db), this.getPlainTableName(table), columns,
+				format == BulkFormat.csv ? " with csv" : "");
+			this.logString(statement, user);
+			conn.setAutoCommit(false);
+			CopyManager copyManager = ((PGConnection) conn).getCopyAPI();
+			String record = records.readRecord();
+			while (record != null) {
+				// every batch is a COPY of its own in a transaction of its own
+				CopyIn copy = copyManager.copyIn(statement);
+				long batch = 0;
+				try {
+					while (record != null && batch < this.copyCommitInterval) {
+						byte[] bytes = record.getBytes("UTF-8");
+						copy.writeToCopy(bytes, 0, bytes.length);
+						batch++;
+						record = records.readRecord();
+					}
+					copy.endCopy();
+				} finally {
+					if (copy.isActive()) {
+						copy.cancelCopy();
+					}
+				}
+				conn.commit();
+				total += batch;
+				if (listener != null) {
+					listener.committed(total);
+				}
+			}
+			return total;
+		} catch (SQLException e) {
+			throw new BackendException(e);
+		} catch (IOException e) {
+			throw new BackendException(e);
+		} finally {
+			DbUtils.closeQuietly(conn);
+			if (total > 0) {
+				this.tableWritten(db, table);
+			}
 		}
 	}
 
 	@Override
 	public List<String> getTables(final String user, final String password,
 		final String db) throws BackendException {
-		Statement st = null;
+		PreparedStatement st = null;
 		Connection conn = null;
 		ResultSet rs = null;
-		String query = String
-			.format(
-				"select table_name from information_schema.tables where table_schema='%s'",
-				this.getSchemaName("", db));
+		String query = "select table_name from information_schema.tables where table_schema = ?";
 		List<String> result = new LinkedList<String>();
 		try {
-			conn = this.connectToDB(user, password, db);
-			st = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_READ_ONLY);
-			this.logString(query.trim(), user);
-			rs = st.executeQuery(query.trim());
+			conn = this.connectForRead(user, password, db);
+			this.logString(query + " -- " + this.getSchemaName("", db), user);
+			st = conn.prepareStatement(query);
+			st.setString(1, this.getSchemaName("", db));
+			rs = st.executeQuery();
 			while (rs.next()) {
 				result.add(rs.getString(1));
 			}
 		} catch (SQLException e) {
 			throw new BackendException(e);
-		} catch (ClassNotFoundException e) {
-			throw new BackendException(e);
 		} finally {
 			DbUtils.closeQuietly(rs);
 			DbUtils.closeQuietly(st);
@@ -637,25 +1524,72 @@ public class PostgresBackend implements Backend {
 	@Override
 	public List<String> getNames(final String user, final String password,
 		final String db, final String table) throws BackendException {
-		Statement st = null;
+		PreparedStatement st = null;
 		Connection conn = null;
 		ResultSet rs = null;
 		List<String> result = new LinkedList<String>();
 		try {
-			conn = this.connectToDB(user, password, db);
-			st = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
-				ResultSet.CONCUR_READ_ONLY);
-			String query = String.format("select %s from \"%s\".\"%s\"",
+			conn = this.connectForRead(user, password, db);
+			String query = String.format("select \"%s\" from \"%s\".\"%s\"",
 				this.getNameField(conn, table, db), this.getSchemaName(table, db),
 				this.getPlainTableName(table));
-			this.logString(query.trim(), user);
-			rs = st.executeQuery(query.trim());
+			this.logString(query, user);
+			st = conn.prepareStatement(query);
+			rs = st.executeQuery();
 			while (rs.next()) {
 				result.add(rs.getString(1));
 			}
 		} catch (SQLException e) {
 			throw new BackendException(e);
-		} catch (ClassNotFoundException e) {
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(st);
+			DbUtils.closeQuietly(conn);
+		}
+		return result;
+	}
+
+	@Override
+	public List<String> getNames(final String user, final String password,
+		final String db, final String table, final String after,
+		final String prefix, final int limit) throws BackendException {
+		PreparedStatement st = null;
+		Connection conn = null;
+		ResultSet rs = null;
+		List<String> result = new ArrayList<String>();
+		try {
+			conn = this.connectForRead(user, password, db);
+			String nameField = this.getNameField(conn, table, db);
+			List<String> conditions = new LinkedList<String>();
+			if (after != null) {
+				// keyset: uses the primary key index instead of skipping rows
+				conditions.add(String.format("\"%s\" > ?", nameField));
+			}
+			if (!StringUtils.isEmpty(prefix)) {
+				conditions.add(String.format("cast(\"%s\" as text) like ?", nameField));
+			}
+			String query = String.format(
+				"select \"%s\" from \"%s\".\"%s\"%s order by \"%s\" limit ?",
+				nameField, this.getSchemaName(table, db),
+				this.getPlainTableName(table), conditions.isEmpty() ? "" : " where "
+					+ StringUtils.join(conditions, " and "), nameField);
+			this.logString(query + " -- " + after + ", " + prefix, user);
+			st = conn.prepareStatement(query);
+			int index = 1;
+			if (after != null) {
+				this.bindName(st, index++, after);
+			}
+			if (!StringUtils.isEmpty(prefix)) {
+				st.setString(index++,
+					prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_")
+						+ "%");
+			}
+			st.setInt(index, limit);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				result.add(rs.getString(1));
+			}
+		} catch (SQLException e) {
 			throw new BackendException(e);
 		} finally {
 			DbUtils.closeQuietly(rs);
@@ -43,6 +43,19 @@ public class PostgresDocument implements Document {
 		this.fields.put(name, field);
 	}
 
+	@SuppressWarnings({ "rawtypes" })
+	@Override
+	public PostgresDocument copy() {
+		PostgresDocument result = new PostgresDocument();
+		result.setDatabase(this.database);
+		result.setTable(this.table);
+		result.setName(this.name);
+		for (Map.Entry<String, Field> entry : this.fields.entrySet()) {
+			result.addField(entry.getKey(), entry.getValue().copy());
+		}
+		return result;
+	}
+
 	@Override
 	public String toString() {
 		return ToStringBuilder.reflectionToString(this);
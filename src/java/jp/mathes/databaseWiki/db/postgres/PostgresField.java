@@ -15,9 +15,11 @@
 */
 package jp.mathes.databaseWiki.db.postgres;
 
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 
+import jp.mathes.databaseWiki.db.BackendException;
 import jp.mathes.databaseWiki.db.Field;
 import jp.mathes.databaseWiki.db.FieldType;
 import jp.mathes.databaseWiki.db.FieldUsage;
@@ -26,11 +28,20 @@ import org.apache.commons.lang3.builder.ToStringBuilder;
 
 public class PostgresField<T> implements Field<T> {
 
+	/**
+	 * loads the allowed values on first access, so documents that are only
+	 * viewed never query the referenced table
+	 */
+	public static interface AllowedValuesLoader<T> {
+		List<T> load() throws BackendException;
+	}
+
 	private FieldType type;
 	private FieldUsage usage;
 	private T value;
 	private String name;
 	private List<T> allowedValues;
+	private transient AllowedValuesLoader<T> allowedValuesLoader;
 
 	public PostgresField() {
 		super();
@@ -85,10 +96,38 @@ public class PostgresField<T> implements Field<T> {
 	public List<T> getAllowedValues() {
 		if (this.allowedValues == null) {
 			this.allowedValues = new LinkedList<T>();
+			if (this.allowedValuesLoader != null) {
+				try {
+					this.allowedValues.addAll(this.allowedValuesLoader.load());
+				} catch (BackendException e) {
+					this.allowedValues = null;
+					throw new IllegalStateException(String.format(
+						"Cannot load allowed values of field %s.", this.name), e);
+				}
+			}
 		}
 		return this.allowedValues;
 	}
 
+	public void setAllowedValuesLoader(final AllowedValuesLoader<T> loader) {
+		this.allowedValuesLoader = loader;
+		this.allowedValues = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public PostgresField<T> copy() {
+		T copiedValue = this.value;
+		if (copiedValue instanceof Date) {
+			copiedValue = (T) ((Date) copiedValue).clone();
+		}
+		PostgresField<T> result = new PostgresField<T>(this.type, this.usage,
+			this.name, copiedValue);
+		// the copy loads the allowed values itself when they are needed
+		result.allowedValuesLoader = this.allowedValuesLoader;
+		return result;
+	}
+
 	@Override
 	public String toString() {
 		return ToStringBuilder.reflectionToString(this);
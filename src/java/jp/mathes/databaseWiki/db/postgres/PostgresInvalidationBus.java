@@ -0,0 +1,288 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db.postgres;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import jp.mathes.databaseWiki.db.LocalInvalidationBus;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Receives changes through LISTEN on the channel dbw_invalidate of the
+ * configured databases. The notifications are sent by the trigger installed
+ * with {@link #installTrigger(Connection, String, String, String)}, so writes
+ * by other nodes and by plain SQL clients reach the local caches within the
+ * poll interval. After a lost connection everything of the database is
+ * invalidated as notifications may have been missed. Needs PostgreSQL 9.1.
+ */
+public class PostgresInvalidationBus extends LocalInvalidationBus {
+
+	public static final String CHANNEL = "dbw_invalidate";
+
+	private static final String FUNCTION = "create or replace function dbw_notify_change() returns trigger as $$"
+		+ " declare"
+		+ "  changed text;"
+		+ " begin"
+		+ "  if tg_op = 'DELETE' then"
+		+ "   execute format('select ($1).%I::text', tg_argv[0]) using old into changed;"
+		+ "  else"
+		+ "   execute format('select ($1).%I::text', tg_argv[0]) using new into changed;"
+		+ "  end if;"
+		+ "  perform pg_notify('"
+		+ PostgresInvalidationBus.CHANNEL
+		+ "', tg_table_schema || E'\\t' || tg_table_name || E'\\t' || coalesce(changed, ''));"
+		+ "  if tg_op = 'UPDATE' then"
+		+ "   execute format('select ($1).%I::text', tg_argv[0]) using old into changed;"
+		+ "   perform pg_notify('"
+		+ PostgresInvalidationBus.CHANNEL
+		+ "', tg_table_schema || E'\\t' || tg_table_name || E'\\t' || coalesce(changed, ''));"
+		+ "  end if;"
+		+ "  return null;"
+		+ " end;"
+		+ " $$ language plpgsql";
+
+	private static final String TABLES = "select n.nspname, c.relname, a.attname"
+		+ " from pg_constraint pk"
+		+ " join pg_class c on c.oid = pk.conrelid"
+		+ " join pg_namespace n on n.oid = c.relnamespace"
+		+ " join pg_attribute a on a.attrelid = c.oid and a.attnum = pk.conkey[1]"
+		+ " where pk.contype = 'p' and array_length(pk.conkey, 1) = 1"
+		+ "  and c.relkind = 'r'"
+		+ "  and n.nspname not in ('pg_catalog', 'information_schema')";
+
+	private final Map<String, Connection> connections = new LinkedHashMap<String, Connection>();
+	private String host;
+	private String port;
+	private String user;
+	private String password;
+	private long pollInterval;
+	private boolean installTriggers;
+	private volatile boolean closed = false;
+	private Thread listener;
+
+	public PostgresInvalidationBus() {
+		super();
+		InputStream resourceAsStream = null;
+		try {
+			Properties props = new Properties();
+			resourceAsStream = this.getClass().getResourceAsStream("/dbw.properties");
+			props.load(resourceAsStream);
+			this.host = props.getProperty("dbw.db.backend.postgres.host");
+			this.port = props.getProperty("dbw.db.backend.postgres.port");
+			this.user = props.getProperty("dbw.invalidation.postgres.user");
+			this.password = props.getProperty("dbw.invalidation.postgres.password");
+			this.pollInterval = Long.parseLong(props.getProperty(
+				"dbw.invalidation.postgres.poll", "500"));
+			this.installTriggers = Boolean.parseBoolean(props.getProperty(
+				"dbw.invalidation.postgres.triggers", "false"));
+			for (String db : StringUtils.split(
+				props.getProperty("dbw.invalidation.postgres.databases", ""), ",")) {
+				if (!StringUtils.isBlank(db)) {
+					this.connections.put(db.trim(), null);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			IOUtils.closeQuietly(resourceAsStream);
+		}
+		this.listener = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				PostgresInvalidationBus.this.listen();
+			}
+		}, "dbw-invalidation-listener");
+		this.listener.setDaemon(true);
+		this.listener.start();
+	}
+
+	/**
+	 * installs or replaces the trigger sending a notification for every written
+	 * row of the table
+	 *
+	 * @param nameColumn the column holding the document name
+	 */
+	public static void installTrigger(final Connection conn,
+		final String schema, final String table, final String nameColumn)
+		throws SQLException {
+		Statement st = null;
+		try {
+			st = conn.createStatement();
+			st.execute(PostgresInvalidationBus.FUNCTION);
+			String tableName = String.format("\"%s\".\"%s\"", schema, table);
+			st.execute(String.format("drop trigger if exists %s on %s",
+				PostgresInvalidationBus.CHANNEL, tableName));
+			st.execute(String.format(
+				"create trigger %s after insert or update or delete on %s"
+					+ " for each row execute procedure dbw_notify_change('%s')",
+				PostgresInvalidationBus.CHANNEL, tableName,
+				nameColumn.replace("'", "''")));
+		} finally {
+			DbUtils.closeQuietly(st);
+		}
+	}
+
+	/**
+	 * installs the trigger on all tables with a single column primary key
+	 */
+	public static void installTriggers(final Connection conn)
+		throws SQLException {
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		try {
+			st = conn.prepareStatement(PostgresInvalidationBus.TABLES);
+			rs = st.executeQuery();
+			while (rs.next()) {
+				PostgresInvalidationBus.installTrigger(conn, rs.getString(1),
+					rs.getString(2), rs.getString(3));
+			}
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(st);
+		}
+	}
+
+	private Connection connect(final String db) throws SQLException {
+		Connection conn = DriverManager.getConnection(String.format(
+			"jdbc:postgresql://%s:%s/%s?charSet=UTF-8", this.host, this.port, db),
+			this.user, this.password);
+		try {
+			if (this.installTriggers) {
+				PostgresInvalidationBus.installTriggers(conn);
+			}
+			Statement st = conn.createStatement();
+			try {
+				st.execute("listen " + PostgresInvalidationBus.CHANNEL);
+			} finally {
+				DbUtils.closeQuietly(st);
+			}
+			return conn;
+		} catch (SQLException e) {
+			DbUtils.closeQuietly(conn);
+			throw e;
+		}
+	}
+
+	private void listen() {
+		while (!this.closed) {
+			for (String db : this.connections.keySet()) {
+				try {
+					this.poll(db);
+				} catch (SQLException e) {
+					e.printStackTrace();
+					synchronized (this.connections) {
+						DbUtils.closeQuietly(this.connections.put(db, null));
+					}
+				}
+			}
+			try {
+				Thread.sleep(this.pollInterval);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		synchronized (this.connections) {
+			for (Map.Entry<String, Connection> entry : this.connections.entrySet()) {
+				DbUtils.closeQuietly(entry.getValue());
+				entry.setValue(null);
+			}
+		}
+	}
+
+	private void poll(final String db) throws SQLException {
+		Connection conn;
+		synchronized (this.connections) {
+			conn = this.connections.get(db);
+			if (conn == null) {
+				conn = this.connect(db);
+				this.connections.put(db, conn);
+				// notifications may have been missed while there was no connection
+				this.dispatch(db, null, null, null);
+			}
+		}
+		// the driver only reads notifications when talking to the server
+		Statement st = conn.createStatement();
+		try {
+			DbUtils.closeQuietly(st.executeQuery("select 1"));
+		} finally {
+			DbUtils.closeQuietly(st);
+		}
+		PGNotification[] notifications = ((PGConnection) conn).getNotifications();
+		if (notifications == null) {
+			return;
+		}
+		for (PGNotification notification : notifications) {
+			String[] parts = StringUtils.splitPreserveAllTokens(
+				notification.getParameter(), "\t", 3);
+			if (parts == null || parts.length < 2) {
+				this.dispatch(db, null, null, null);
+			} else {
+				this.dispatch(db, parts[0], parts[1],
+					parts.length < 3 || parts[2].isEmpty() ? null : parts[2]);
+			}
+		}
+	}
+
+	/**
+	 * invalidates locally and notifies the other nodes listening on the
+	 * database
+	 */
+	@Override
+	public void publish(final String db, final String schema,
+		final String table, final String name) {
+		super.publish(db, schema, table, name);
+		synchronized (this.connections) {
+			Connection conn = this.connections.get(db);
+			if (conn == null) {
+				return;
+			}
+			PreparedStatement st = null;
+			try {
+				st = conn.prepareStatement("select pg_notify(?, ?)");
+				st.setString(1, PostgresInvalidationBus.CHANNEL);
+				st.setString(2, table == null ? "" : String.format("%s\t%s\t%s",
+					schema, table, name == null ? "" : name));
+				DbUtils.closeQuietly(st.executeQuery());
+			} catch (SQLException e) {
+				e.printStackTrace();
+			} finally {
+				DbUtils.closeQuietly(st);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		this.closed = true;
+		this.listener.interrupt();
+		super.close();
+	}
+}
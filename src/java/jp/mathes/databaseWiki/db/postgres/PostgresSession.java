@@ -0,0 +1,120 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db.postgres;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import jp.mathes.databaseWiki.db.QueryContext;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.postgresql.PGConnection;
+
+/**
+ * One connection and transaction shared by all reads of a
+ * {@link QueryContext}. The connection handed out ignores close, commit and
+ * setAutoCommit; a rollback after an error starts a new transaction. With
+ * snapshot the transaction is READ ONLY REPEATABLE READ so that all reads see
+ * the same state of the database.
+ */
+class PostgresSession implements QueryContext.Resource, InvocationHandler {
+
+	private final Connection conn;
+	private final boolean snapshot;
+	private final Connection shared;
+
+	public PostgresSession(final Connection conn, final boolean snapshot)
+		throws SQLException {
+		this.conn = conn;
+		this.snapshot = snapshot;
+		this.conn.setAutoCommit(false);
+		this.begin();
+		this.shared = (Connection) Proxy.newProxyInstance(
+			PostgresSession.class.getClassLoader(), new Class<?>[] {
+				Connection.class, PGConnection.class }, this);
+	}
+
+	public static boolean isShared(final Connection conn) {
+		return Proxy.isProxyClass(conn.getClass())
+			&& Proxy.getInvocationHandler(conn) instanceof PostgresSession;
+	}
+
+	private void begin() throws SQLException {
+		if (!this.snapshot) {
+			return;
+		}
+		Statement st = this.conn.createStatement();
+		try {
+			// the first statement opens the transaction of the driver
+			st.execute("set transaction isolation level repeatable read, read only");
+		} finally {
+			DbUtils.closeQuietly(st);
+		}
+	}
+
+	public Connection getConnection() {
+		return this.shared;
+	}
+
+	@Override
+	public Object invoke(final Object proxy, final Method method,
+		final Object[] args) throws Throwable {
+		String methodName = method.getName();
+		if ("close".equals(methodName) || "commit".equals(methodName)
+			|| "setAutoCommit".equals(methodName)) {
+			return null;
+		} else if ("rollback".equals(methodName) && args == null) {
+			this.conn.rollback();
+			this.begin();
+			return null;
+		} else if ("isClosed".equals(methodName)) {
+			return this.conn.isClosed();
+		} else if ("equals".equals(methodName)) {
+			return proxy == args[0];
+		} else if ("hashCode".equals(methodName)) {
+			return System.identityHashCode(proxy);
+		} else if ("toString".equals(methodName)) {
+			return "Shared " + this.conn;
+		}
+		try {
+			return method.invoke(this.conn, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * ends the transaction, a snapshot is only read so it is rolled back
+	 */
+	@Override
+	public void release() {
+		try {
+			if (this.snapshot) {
+				this.conn.rollback();
+			} else {
+				this.conn.commit();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		DbUtils.closeQuietly(this.conn);
+	}
+}
@@ -0,0 +1,213 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db.postgres;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jp.mathes.databaseWiki.db.BackendException;
+
+import org.apache.commons.dbutils.DbUtils;
+
+/**
+ * Caches {@link TableMetadata} per (database, schema, table). Entries expire
+ * after a TTL and can be invalidated explicitly. Depending on the load mode a
+ * miss either loads the single table or the metadata of all tables of the
+ * database with one query against pg_catalog.
+ */
+public class SchemaCache {
+
+	public static enum LoadMode {
+		table, database
+	}
+
+	private static final String QUERY = "select n.nspname, c.relname, a.attname,"
+		+ " pg_get_expr(d.adbin, d.adrelid), format_type(a.atttypid, null),"
+		+ " a.attnum = any(pk.conkey), fn.nspname, fc.relname, fa.attname"
+		+ " from pg_class c"
+		+ " join pg_namespace n on n.oid = c.relnamespace"
+		+ " join pg_attribute a on a.attrelid = c.oid and a.attnum > 0 and not a.attisdropped"
+		+ " left join pg_attrdef d on d.adrelid = c.oid and d.adnum = a.attnum"
+		+ " left join pg_constraint pk on pk.conrelid = c.oid and pk.contype = 'p'"
+		+ " left join pg_constraint fk on fk.conrelid = c.oid and fk.contype = 'f'"
+		+ "  and fk.conkey = array[a.attnum]"
+		+ " left join pg_class fc on fc.oid = fk.confrelid"
+		+ " left join pg_namespace fn on fn.oid = fc.relnamespace"
+		+ " left join pg_attribute fa on fa.attrelid = fk.confrelid and fa.attnum = fk.confkey[1]"
+		+ " where c.relkind in ('r', 'v')"
+		+ "  and n.nspname not in ('pg_catalog', 'information_schema')"
+		+ "  and n.nspname not like 'pg_toast%%' %s"
+		+ " order by n.nspname, c.relname, a.attnum";
+
+	private final ConcurrentMap<String, TableMetadata> tables = new ConcurrentHashMap<String, TableMetadata>();
+	private final ConcurrentMap<String, Long> databasesLoadedAt = new ConcurrentHashMap<String, Long>();
+	private final PostgresBackend backend;
+	private final long ttl;
+	private final LoadMode loadMode;
+
+	/**
+	 * @param ttl seconds after which an entry is reloaded, 0 disables caching
+	 *          and a negative value caches until invalidation
+	 */
+	public SchemaCache(final PostgresBackend backend, final int ttl,
+		final LoadMode loadMode) {
+		this.backend = backend;
+		this.ttl = ttl * 1000L;
+		this.loadMode = loadMode;
+	}
+
+	private static String key(final String db, final String schema,
+		final String table) {
+		return db + "\u0000" + schema + "\u0000" + table;
+	}
+
+	private boolean isValid(final Long loadedAt) {
+		return loadedAt != null
+			&& (this.ttl < 0 || System.currentTimeMillis() - loadedAt < this.ttl);
+	}
+
+	/**
+	 * @param db the plain database name the connection points to
+	 * @return the metadata or null if the table does not exist
+	 */
+	public TableMetadata get(final Connection conn, final String db,
+		final String schema, final String table) throws BackendException {
+		String key = SchemaCache.key(db, schema, table);
+		TableMetadata metadata = this.tables.get(key);
+		if (metadata != null && this.isValid(metadata.getLoadedAt())) {
+			return metadata;
+		}
+		if (this.ttl != 0 && this.loadMode == LoadMode.database
+			&& !this.isValid(this.databasesLoadedAt.get(db))) {
+			this.loadDatabase(conn, db);
+			metadata = this.tables.get(key);
+			if (metadata != null) {
+				return metadata;
+			}
+		}
+		// tables created after the bulk load end up here
+		metadata = this.load(conn, schema, table).get(
+			SchemaCache.key(null, schema, table));
+		if (metadata != null && this.ttl != 0) {
+			this.tables.put(key, metadata);
+		}
+		return metadata;
+	}
+
+	/**
+	 * loads the metadata of all tables of the database the connection points to
+	 * with a single query
+	 */
+	public void loadDatabase(final Connection conn, final String db)
+		throws BackendException {
+		Map<String, TableMetadata> loaded = this.load(conn, null, null);
+		this.invalidate(db);
+		this.databasesLoadedAt.put(db, System.currentTimeMillis());
+		for (TableMetadata metadata : loaded.values()) {
+			this.tables.put(
+				SchemaCache.key(db, metadata.getSchema(), metadata.getTable()),
+				metadata);
+		}
+	}
+
+	public void invalidate(final String db, final String schema,
+		final String table) {
+		this.tables.remove(SchemaCache.key(db, schema, table));
+	}
+
+	public void invalidate(final String db) {
+		this.databasesLoadedAt.remove(db);
+		String prefix = db + "\u0000";
+		for (Iterator<String> it = this.tables.keySet().iterator(); it.hasNext();) {
+			if (it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		this.databasesLoadedAt.clear();
+		this.tables.clear();
+	}
+
+	private Map<String, TableMetadata> load(final Connection conn,
+		final String schema, final String table) throws BackendException {
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		Map<String, TableMetadata> result = new HashMap<String, TableMetadata>();
+		try {
+			String queryString = String.format(SchemaCache.QUERY,
+				table == null ? "" : "and n.nspname = ? and c.relname = ?");
+			this.backend.logString(queryString, "?");
+			st = conn.prepareStatement(queryString);
+			if (table != null) {
+				st.setString(1, schema);
+				st.setString(2, table);
+			}
+			rs = st.executeQuery();
+			String currentSchema = null;
+			String currentTable = null;
+			Map<String, TableMetadata.Column> columns = new LinkedHashMap<String, TableMetadata.Column>();
+			List<String> primaryKey = new LinkedList<String>();
+			while (rs.next()) {
+				if (!rs.getString(1).equals(currentSchema)
+					|| !rs.getString(2).equals(currentTable)) {
+					if (currentTable != null) {
+						result.put(SchemaCache.key(null, currentSchema, currentTable),
+							new TableMetadata(currentSchema, currentTable,
+								new LinkedList<TableMetadata.Column>(columns.values()),
+								primaryKey));
+					}
+					currentSchema = rs.getString(1);
+					currentTable = rs.getString(2);
+					columns.clear();
+					primaryKey = new LinkedList<String>();
+				}
+				String column = rs.getString(3);
+				// a column with several foreign keys shows up several times
+				if (columns.containsKey(column)) {
+					continue;
+				}
+				columns.put(column, new TableMetadata.Column(column, rs.getString(5),
+					rs.getString(4), rs.getString(7), rs.getString(8), rs.getString(9)));
+				if (rs.getBoolean(6)) {
+					primaryKey.add(column);
+				}
+			}
+			if (currentTable != null) {
+				result.put(SchemaCache.key(null, currentSchema, currentTable),
+					new TableMetadata(currentSchema, currentTable,
+						new LinkedList<TableMetadata.Column>(columns.values()), primaryKey));
+			}
+		} catch (SQLException e) {
+			throw new BackendException(e);
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(st);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.db.postgres;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Immutable description of one table as read from pg_catalog: the columns in
+ * ordinal order, their types and defaults, the primary key and single column
+ * foreign keys.
+ */
+public class TableMetadata {
+
+	public static class Column {
+		private final String name;
+		private final String dataType;
+		private final String defaultValue;
+		private final String foreignSchema;
+		private final String foreignTable;
+		private final String foreignColumn;
+
+		public Column(final String name, final String dataType,
+			final String defaultValue, final String foreignSchema,
+			final String foreignTable, final String foreignColumn) {
+			this.name = name;
+			this.dataType = dataType;
+			this.defaultValue = defaultValue;
+			this.foreignSchema = foreignSchema;
+			this.foreignTable = foreignTable;
+			this.foreignColumn = foreignColumn;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		/** type name as in information_schema.columns.data_type */
+		public String getDataType() {
+			return this.dataType;
+		}
+
+		/** default expression as in information_schema.columns.column_default */
+		public String getDefaultValue() {
+			return this.defaultValue;
+		}
+
+		public String getForeignSchema() {
+			return this.foreignSchema;
+		}
+
+		public String getForeignTable() {
+			return this.foreignTable;
+		}
+
+		public String getForeignColumn() {
+			return this.foreignColumn;
+		}
+
+		public boolean isForeignKey() {
+			return this.foreignTable != null && this.foreignColumn != null;
+		}
+
+		@Override
+		public String toString() {
+			return ToStringBuilder.reflectionToString(this);
+		}
+	}
+
+	private final String schema;
+	private final String table;
+	private final List<Column> columns;
+	private final List<String> primaryKey;
+	private final long loadedAt;
+
+	public TableMetadata(final String schema, final String table,
+		final List<Column> columns, final List<String> primaryKey) {
+		this.schema = schema;
+		this.table = table;
+		this.columns = Collections.unmodifiableList(new LinkedList<Column>(
+			columns));
+		this.primaryKey = Collections.unmodifiableList(new LinkedList<String>(
+			primaryKey));
+		this.loadedAt = System.currentTimeMillis();
+	}
+
+	public String getSchema() {
+		return this.schema;
+	}
+
+	public String getTable() {
+		return this.table;
+	}
+
+	public List<Column> getColumns() {
+		return this.columns;
+	}
+
+	public Column getColumn(final String name) {
+		for (Column column : this.columns) {
+			if (column.getName().equals(name)) {
+				return column;
+			}
+		}
+		return null;
+	}
+
+	public List<String> getPrimaryKey() {
+		return this.primaryKey;
+	}
+
+	/**
+	 * @return the single primary key column or null if there is no or a multi
+	 *         column primary key
+	 */
+	public String getNameField() {
+		return this.primaryKey.size() == 1 ? this.primaryKey.get(0) : null;
+	}
+
+	public long getLoadedAt() {
+		return this.loadedAt;
+	}
+
+	@Override
+	public String toString() {
+		return ToStringBuilder.reflectionToString(this);
+	}
+}
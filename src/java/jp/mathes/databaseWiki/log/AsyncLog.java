@@ -0,0 +1,226 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Log shared by the SQL and the DAV log. Callers only put the message into a
+ * lock-free ring buffer, a single writer thread appends them to long-lived
+ * buffered files. If the buffer is full the message is either dropped (and
+ * counted) or the caller waits until there is room, depending on
+ * dbw.log.overflow. By default the caller waits, the logs are an audit trail
+ * of the SQL and the DAV access.
+ */
+public class AsyncLog {
+
+	public static enum OverflowPolicy {
+		drop, block
+	}
+
+	private static class Entry {
+		private final String file;
+		private final String text;
+
+		public Entry(final String file, final String text) {
+			this.file = file;
+			this.text = text;
+		}
+	}
+
+	private static volatile AsyncLog instance = null;
+
+	private final RingBuffer<Entry> buffer;
+	private final OverflowPolicy policy;
+	private final long maxSize;
+	private final int backups;
+	private final int fileBufferSize;
+	private final Map<String, RotatingFile> files = new HashMap<String, RotatingFile>();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean writerParked = false;
+	private volatile boolean closed = false;
+
+	static public AsyncLog getInstance() {
+		if (AsyncLog.instance == null) {
+			synchronized (AsyncLog.class) {
+				if (AsyncLog.instance == null) {
+					AsyncLog.instance = new AsyncLog(AsyncLog.loadProperties());
+				}
+			}
+		}
+		return AsyncLog.instance;
+	}
+
+	private static Properties loadProperties() {
+		Properties props = new Properties();
+		InputStream resourceStream = null;
+		try {
+			resourceStream = AsyncLog.class.getResourceAsStream("/dbw.properties");
+			props.load(resourceStream);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			IOUtils.closeQuietly(resourceStream);
+		}
+		return props;
+	}
+
+	public AsyncLog(final Properties props) {
+		this.buffer = new RingBuffer<Entry>(Integer.parseInt(props.getProperty(
+			"dbw.log.buffersize", "8192")));
+		this.policy = OverflowPolicy.valueOf(props.getProperty("dbw.log.overflow",
+			"block"));
+		this.maxSize = Long.parseLong(props.getProperty("dbw.log.maxsize",
+			"10485760"));
+		this.backups = Integer.parseInt(props.getProperty("dbw.log.backups", "5"));
+		this.fileBufferSize = Integer.parseInt(props.getProperty(
+			"dbw.log.filebuffer", "65536"));
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				AsyncLog.this.writeLoop();
+			}
+		}, "dbw-log-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * closes the shared log, called when the application stops
+	 */
+	static public void shutdown() {
+		AsyncLog log = AsyncLog.instance;
+		if (log != null) {
+			log.close();
+		}
+	}
+
+	/**
+	 * queues one line for the given file, a newline is appended
+	 */
+	public void log(final File file, final String message) {
+		if (file == null || this.closed) {
+			return;
+		}
+		Entry entry = new Entry(file.getPath(), message + "\n");
+		while (!this.buffer.offer(entry)) {
+			if (this.policy == OverflowPolicy.drop || this.closed) {
+				this.dropped.incrementAndGet();
+				return;
+			}
+			LockSupport.unpark(this.writer);
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+		if (this.writerParked) {
+			LockSupport.unpark(this.writer);
+		}
+	}
+
+	private void writeLoop() {
+		while (true) {
+			Entry entry = this.buffer.poll();
+			if (entry != null) {
+				this.write(entry);
+				continue;
+			}
+			// nothing queued: hand the buffered bytes to the OS, then sleep
+			this.flushAll();
+			if (this.closed) {
+				this.closeAll();
+				return;
+			}
+			this.writerParked = true;
+			if (this.buffer.isEmpty()) {
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+			}
+			this.writerParked = false;
+		}
+	}
+
+	private void write(final Entry entry) {
+		RotatingFile file = this.files.get(entry.file);
+		if (file == null) {
+			file = new RotatingFile(new File(entry.file), this.maxSize, this.backups,
+				this.fileBufferSize);
+			this.files.put(entry.file, file);
+		}
+		try {
+			file.write(entry.text);
+			this.written.incrementAndGet();
+		} catch (IOException e) {
+			this.dropped.incrementAndGet();
+			e.printStackTrace();
+		}
+	}
+
+	private void flushAll() {
+		for (RotatingFile file : this.files.values()) {
+			try {
+				file.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void closeAll() {
+		for (Iterator<RotatingFile> it = this.files.values().iterator(); it
+			.hasNext();) {
+			try {
+				it.next().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			it.remove();
+		}
+	}
+
+	/**
+	 * writes the queued messages and closes the files, waits at most five
+	 * seconds for the writer
+	 */
+	public void close() {
+		this.closed = true;
+		LockSupport.unpark(this.writer);
+		try {
+			this.writer.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public Map<String, Long> getStatistics() {
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		result.put("written", this.written.get());
+		result.put("dropped", this.dropped.get());
+		result.put("capacity", (long) this.buffer.capacity());
+		return result;
+	}
+}
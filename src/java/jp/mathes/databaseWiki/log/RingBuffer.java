@@ -0,0 +1,93 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer. Every
+ * slot carries a sequence number telling whether it is free for the producer
+ * of a given position or filled for the consumer, so producers only compete
+ * on one compare-and-set of the tail.
+ */
+public class RingBuffer<T> {
+
+	private final int mask;
+	private final AtomicReferenceArray<T> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0;
+
+	/**
+	 * @param capacity rounded up to the next power of two
+	 */
+	public RingBuffer(final int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<T>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			this.sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(final T element) {
+		while (true) {
+			long position = this.tail.get();
+			int index = (int) position & this.mask;
+			long sequence = this.sequences.get(index);
+			if (sequence == position) {
+				if (this.tail.compareAndSet(position, position + 1)) {
+					this.slots.lazySet(index, element);
+					this.sequences.set(index, position + 1);
+					return true;
+				}
+			} else if (sequence < position) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * must only be called by the consuming thread
+	 *
+	 * @return the oldest element or null if the buffer is empty
+	 */
+	public T poll() {
+		int index = (int) this.head & this.mask;
+		if (this.sequences.get(index) != this.head + 1) {
+			return null;
+		}
+		T element = this.slots.get(index);
+		this.slots.lazySet(index, null);
+		this.sequences.set(index, this.head + this.mask + 1);
+		this.head++;
+		return element;
+	}
+
+	public boolean isEmpty() {
+		return this.sequences.get((int) this.head & this.mask) != this.head + 1;
+	}
+
+	public int capacity() {
+		return this.mask + 1;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Append-only log file kept open with a write buffer. When the file grows
+ * beyond maxSize it is renamed to name.1 (name.1 to name.2 and so on) and a
+ * new file is started. Only used by the writer thread of {@link AsyncLog}.
+ */
+class RotatingFile {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final long maxSize;
+	private final int backups;
+	private final ByteBuffer buffer;
+	private FileOutputStream stream;
+	private FileChannel channel;
+	private long size;
+
+	/**
+	 * @param maxSize in bytes, 0 disables the rotation
+	 * @param backups number of rotated files kept
+	 */
+	public RotatingFile(final File file, final long maxSize, final int backups,
+		final int bufferSize) {
+		this.file = file;
+		this.maxSize = maxSize;
+		this.backups = backups;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	private void open() throws IOException {
+		this.stream = new FileOutputStream(this.file, true);
+		this.channel = this.stream.getChannel();
+		this.size = this.channel.size();
+	}
+
+	public void write(final String text) throws IOException {
+		if (this.channel == null) {
+			this.open();
+		}
+		byte[] bytes = text.getBytes(RotatingFile.UTF8);
+		if (this.maxSize > 0 && this.size > 0
+			&& this.size + this.buffer.position() + bytes.length > this.maxSize) {
+			this.rotate();
+		}
+		if (bytes.length > this.buffer.remaining()) {
+			this.flush();
+		}
+		if (bytes.length > this.buffer.capacity()) {
+			this.size += this.channel.write(ByteBuffer.wrap(bytes));
+		} else {
+			this.buffer.put(bytes);
+		}
+	}
+
+	public void flush() throws IOException {
+		if (this.channel == null) {
+			return;
+		}
+		this.buffer.flip();
+		while (this.buffer.hasRemaining()) {
+			this.size += this.channel.write(this.buffer);
+		}
+		this.buffer.clear();
+	}
+
+	private void rotate() throws IOException {
+		this.close();
+		if (this.backups > 0) {
+			String name = this.file.getPath();
+			new File(name + "." + this.backups).delete();
+			for (int i = this.backups - 1; i > 0; i--) {
+				new File(name + "." + i).renameTo(new File(name + "." + (i + 1)));
+			}
+			this.file.renameTo(new File(name + ".1"));
+		} else {
+			this.file.delete();
+		}
+		this.open();
+	}
+
+	public void close() throws IOException {
+		try {
+			this.flush();
+		} finally {
+			IOUtils.closeQuietly(this.stream);
+			this.stream = null;
+			this.channel = null;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with buckets of powers of two microseconds, the
+ * last bucket takes everything above 2^(BUCKETS - 2) microseconds. Percentiles
+ * are reported as the upper bound of their bucket.
+ */
+public class Histogram {
+
+	public static final int BUCKETS = 36;
+
+	private final AtomicLongArray counts = new AtomicLongArray(Histogram.BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @return the upper bound of the bucket in microseconds,
+	 *         {@link Long#MAX_VALUE} for the last one
+	 */
+	public static long getUpperBound(final int bucket) {
+		return bucket == Histogram.BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+	}
+
+	private static int bucket(final long micros) {
+		if (micros <= 1) {
+			return 0;
+		}
+		return Math.min(Histogram.BUCKETS - 1,
+			64 - Long.numberOfLeadingZeros(micros - 1));
+	}
+
+	public void record(final long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		this.counts.incrementAndGet(Histogram.bucket(micros));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(micros);
+		long current = this.max.get();
+		while (micros > current && !this.max.compareAndSet(current, micros)) {
+			current = this.max.get();
+		}
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/** microseconds */
+	public long getSum() {
+		return this.sum.get();
+	}
+
+	/** microseconds */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/** microseconds */
+	public double getMean() {
+		long count = this.count.get();
+		return count == 0 ? 0 : (double) this.sum.get() / count;
+	}
+
+	public long getBucketCount(final int bucket) {
+		return this.counts.get(bucket);
+	}
+
+	/**
+	 * @param percentile between 0 and 1
+	 * @return microseconds, the maximum if it falls into the last bucket
+	 */
+	public long getPercentile(final double percentile) {
+		long count = this.count.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * count);
+		long seen = 0;
+		for (int i = 0; i < Histogram.BUCKETS - 1; i++) {
+			seen += this.counts.get(i);
+			if (seen >= rank) {
+				return Math.min(Histogram.getUpperBound(i), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+}
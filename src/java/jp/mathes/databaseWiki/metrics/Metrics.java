@@ -0,0 +1,242 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Registry of the {@link OperationMetrics} of backends and of the statistics
+ * of pools, caches and logs. Everything is registered as MBean under
+ * jp.mathes.databaseWiki unless dbw.metrics.jmx is false, and can be written
+ * in the Prometheus text format. At most dbw.metrics.maxtables metrics per
+ * table are kept, they are never removed.
+ */
+public class Metrics {
+
+	public static interface Source {
+		Map<String, Long> getStatistics();
+	}
+
+	private static final String DOMAIN = "jp.mathes.databaseWiki";
+
+	private static volatile Metrics instance = null;
+
+	private final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<String, OperationMetrics>();
+	private final ConcurrentMap<String, Source> sources = new ConcurrentHashMap<String, Source>();
+	private final MBeanServer mbeanServer;
+	private final int maxTables;
+	private final AtomicInteger tables = new AtomicInteger();
+
+	static public Metrics getInstance() {
+		if (Metrics.instance == null) {
+			synchronized (Metrics.class) {
+				if (Metrics.instance == null) {
+					Metrics.instance = new Metrics(Metrics.loadProperties());
+				}
+			}
+		}
+		return Metrics.instance;
+	}
+
+	private static Properties loadProperties() {
+		Properties props = new Properties();
+		InputStream resourceStream = null;
+		try {
+			resourceStream = Metrics.class.getResourceAsStream("/dbw.properties");
+			if (resourceStream != null) {
+				props.load(resourceStream);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			IOUtils.closeQuietly(resourceStream);
+		}
+		return props;
+	}
+
+	public Metrics(final Properties props) {
+		this.mbeanServer = Boolean.parseBoolean(props.getProperty(
+			"dbw.metrics.jmx", "true")) ? ManagementFactory.getPlatformMBeanServer()
+			: null;
+		this.maxTables = Integer.parseInt(props.getProperty(
+			"dbw.metrics.maxtables", "1000"));
+	}
+
+	private static String key(final String operation, final String table) {
+		return table == null ? operation : operation + "\u0000" + table;
+	}
+
+	/**
+	 * @param table null for the metrics over all tables
+	 * @return null for a table once dbw.metrics.maxtables metrics per table
+	 *         exist
+	 */
+	public OperationMetrics getOperation(final String operation,
+		final String table) {
+		String key = Metrics.key(operation, table);
+		OperationMetrics metrics = this.operations.get(key);
+		if (metrics == null) {
+			if (table != null
+				&& this.tables.incrementAndGet() > this.maxTables) {
+				this.tables.decrementAndGet();
+				return null;
+			}
+			metrics = new OperationMetrics(operation, table);
+			OperationMetrics existing = this.operations.putIfAbsent(key, metrics);
+			if (existing != null) {
+				if (table != null) {
+					this.tables.decrementAndGet();
+				}
+				return existing;
+			}
+			this.register("type=Operation,operation=" + ObjectName.quote(operation)
+				+ (table == null ? "" : ",table=" + ObjectName.quote(table)), metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return the metrics if they were already created or null
+	 */
+	public OperationMetrics findOperation(final String operation,
+		final String table) {
+		return this.operations.get(Metrics.key(operation, table));
+	}
+
+	/**
+	 * replaces an earlier source of the same name
+	 */
+	public void addSource(final String name, final Source source) {
+		this.sources.put(name, source);
+		this.register("type=Statistics,name=" + ObjectName.quote(name),
+			new SourceMBean(name, source));
+	}
+
+	private void register(final String properties, final Object mbean) {
+		if (this.mbeanServer == null) {
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName(Metrics.DOMAIN + ":" + properties);
+			if (this.mbeanServer.isRegistered(name)) {
+				this.mbeanServer.unregisterMBean(name);
+			}
+			this.mbeanServer.registerMBean(mbean, name);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static String labels(final OperationMetrics metrics,
+		final String extra) {
+		StringBuilder result = new StringBuilder("{operation=\"")
+			.append(Metrics.escape(metrics.getOperation())).append('"');
+		if (metrics.getTable() != null) {
+			result.append(",table=\"").append(Metrics.escape(metrics.getTable()))
+				.append('"');
+		}
+		if (extra != null) {
+			result.append(',').append(extra);
+		}
+		return result.append('}').toString();
+	}
+
+	private static String escape(final String value) {
+		return StringUtils.replaceEach(value, new String[] { "\\", "\"", "\n" },
+			new String[] { "\\\\", "\\\"", "\\n" });
+	}
+
+	/**
+	 * writes all metrics in the Prometheus text format, latencies in seconds
+	 */
+	public void writeText(final PrintWriter out) {
+		List<OperationMetrics> all = new ArrayList<OperationMetrics>(
+			this.operations.values());
+		Collections.sort(all, new Comparator<OperationMetrics>() {
+			@Override
+			public int compare(final OperationMetrics o1, final OperationMetrics o2) {
+				int result = o1.getOperation().compareTo(o2.getOperation());
+				if (result == 0) {
+					result = String.valueOf(o1.getTable()).compareTo(
+						String.valueOf(o2.getTable()));
+				}
+				return result;
+			}
+		});
+		out.println("# TYPE dbw_operation_seconds histogram");
+		for (OperationMetrics metrics : all) {
+			Histogram histogram = metrics.getHistogram();
+			long cumulative = 0;
+			for (int i = 0; i < Histogram.BUCKETS - 1; i++) {
+				cumulative += histogram.getBucketCount(i);
+				out.println("dbw_operation_seconds_bucket"
+					+ Metrics.labels(metrics,
+						"le=\"" + Histogram.getUpperBound(i) / 1000000.0 + "\"") + " "
+					+ cumulative);
+			}
+			out.println("dbw_operation_seconds_bucket"
+				+ Metrics.labels(metrics, "le=\"+Inf\"") + " " + histogram.getCount());
+			out.println("dbw_operation_seconds_sum" + Metrics.labels(metrics, null)
+				+ " " + histogram.getSum() / 1000000.0);
+			out.println("dbw_operation_seconds_count" + Metrics.labels(metrics, null)
+				+ " " + histogram.getCount());
+		}
+		out.println("# TYPE dbw_operation_errors_total counter");
+		for (OperationMetrics metrics : all) {
+			out.println("dbw_operation_errors_total" + Metrics.labels(metrics, null)
+				+ " " + metrics.getErrors());
+		}
+		out.println("# TYPE dbw_operation_rows_total counter");
+		for (OperationMetrics metrics : all) {
+			out.println("dbw_operation_rows_total" + Metrics.labels(metrics, null)
+				+ " " + metrics.getRows());
+		}
+		out.println("# TYPE dbw_operation_bytes_total counter");
+		for (OperationMetrics metrics : all) {
+			out.println("dbw_operation_bytes_total" + Metrics.labels(metrics, null)
+				+ " " + metrics.getBytes());
+		}
+		List<String> names = new ArrayList<String>(this.sources.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			for (Map.Entry<String, Long> entry : this.sources.get(name)
+				.getStatistics().entrySet()) {
+				out.println("dbw_" + name + "_" + entry.getKey() + " "
+					+ entry.getValue());
+			}
+		}
+		out.flush();
+	}
+}
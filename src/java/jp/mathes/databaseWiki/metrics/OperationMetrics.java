@@ -0,0 +1,132 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies, errors, rows and bytes of one operation, optionally of one table.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+	private final String operation;
+	private final String table;
+	private final Histogram histogram = new Histogram();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	public OperationMetrics(final String operation, final String table) {
+		this.operation = operation;
+		this.table = table;
+	}
+
+	/**
+	 * @param start as returned by {@link System#nanoTime()} when the operation
+	 *          started
+	 */
+	public void record(final long start, final boolean failed) {
+		this.recordDuration(System.nanoTime() - start, failed);
+	}
+
+	public void recordDuration(final long nanos, final boolean failed) {
+		this.histogram.record(nanos);
+		if (failed) {
+			this.errors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * counts an error noticed after the operation was recorded, like one while
+	 * reading the rows of a query
+	 */
+	public void addError() {
+		this.errors.incrementAndGet();
+	}
+
+	public void addRows(final long rows) {
+		this.rows.addAndGet(rows);
+	}
+
+	public void addBytes(final long bytes) {
+		this.bytes.addAndGet(bytes);
+	}
+
+	public Histogram getHistogram() {
+		return this.histogram;
+	}
+
+	@Override
+	public String getOperation() {
+		return this.operation;
+	}
+
+	@Override
+	public String getTable() {
+		return this.table;
+	}
+
+	@Override
+	public long getCount() {
+		return this.histogram.getCount();
+	}
+
+	@Override
+	public long getErrors() {
+		return this.errors.get();
+	}
+
+	@Override
+	public double getErrorRate() {
+		long count = this.histogram.getCount();
+		return count == 0 ? 0 : (double) this.errors.get() / count;
+	}
+
+	@Override
+	public long getRows() {
+		return this.rows.get();
+	}
+
+	@Override
+	public long getBytes() {
+		return this.bytes.get();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		return this.histogram.getMean() / 1000;
+	}
+
+	@Override
+	public double getMedianMillis() {
+		return this.histogram.getPercentile(0.5) / 1000.0;
+	}
+
+	@Override
+	public double get95thPercentileMillis() {
+		return this.histogram.getPercentile(0.95) / 1000.0;
+	}
+
+	@Override
+	public double get99thPercentileMillis() {
+		return this.histogram.getPercentile(0.99) / 1000.0;
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return this.histogram.getMax() / 1000.0;
+	}
+}
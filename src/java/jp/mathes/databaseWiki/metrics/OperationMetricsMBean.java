@@ -0,0 +1,46 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.metrics;
+
+/**
+ * JMX view of {@link OperationMetrics}, times in milliseconds.
+ */
+public interface OperationMetricsMBean {
+
+	String getOperation();
+
+	String getTable();
+
+	long getCount();
+
+	long getErrors();
+
+	double getErrorRate();
+
+	long getRows();
+
+	long getBytes();
+
+	double getMeanMillis();
+
+	double getMedianMillis();
+
+	double get95thPercentileMillis();
+
+	double get99thPercentileMillis();
+
+	double getMaxMillis();
+}
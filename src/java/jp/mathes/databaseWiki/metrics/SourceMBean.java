@@ -0,0 +1,92 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Read-only MBean with one attribute per value of a {@link Metrics.Source}.
+ */
+class SourceMBean implements DynamicMBean {
+
+	private final String name;
+	private final Metrics.Source source;
+
+	public SourceMBean(final String name, final Metrics.Source source) {
+		this.name = name;
+		this.source = source;
+	}
+
+	@Override
+	public Object getAttribute(final String attribute)
+		throws AttributeNotFoundException {
+		Long value = this.source.getStatistics().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(final String[] attributes) {
+		Map<String, Long> statistics = this.source.getStatistics();
+		AttributeList result = new AttributeList();
+		for (String attribute : attributes) {
+			if (statistics.containsKey(attribute)) {
+				result.add(new Attribute(attribute, statistics.get(attribute)));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String key : this.source.getStatistics().keySet()) {
+			attributes.add(new MBeanAttributeInfo(key, Long.class.getName(), key,
+				true, false, false));
+		}
+		return new MBeanInfo(SourceMBean.class.getName(), this.name,
+			attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+			new MBeanOperationInfo[0], null);
+	}
+
+	@Override
+	public Object invoke(final String actionName, final Object[] params,
+		final String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+
+	@Override
+	public void setAttribute(final Attribute attribute) {
+		throw new UnsupportedOperationException(attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(final AttributeList attributes) {
+		return new AttributeList();
+	}
+}
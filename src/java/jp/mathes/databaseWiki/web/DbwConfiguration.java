@@ -15,27 +15,51 @@
  */
 package jp.mathes.databaseWiki.web;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import jp.mathes.databaseWiki.db.Backend;
+import jp.mathes.databaseWiki.db.InvalidationBus;
+import jp.mathes.databaseWiki.db.LocalInvalidationBus;
+import jp.mathes.databaseWiki.log.AsyncLog;
+import jp.mathes.databaseWiki.metrics.Metrics;
 import jp.mathes.databaseWiki.wiki.Plugin;
+import jp.mathes.databaseWiki.wiki.PluginPipeline;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
+import freemarker.cache.ClassTemplateLoader;
+import freemarker.cache.MultiTemplateLoader;
+import freemarker.cache.StrongCacheStorage;
+import freemarker.cache.TemplateLoader;
+import freemarker.ext.beans.BeansWrapper;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateModelException;
+
 public class DbwConfiguration {
 
 	static private DbwConfiguration instance = null;
 	private Backend backend;
 	private List<Plugin> plugins = new LinkedList<Plugin>();
+	private PluginPipeline pipeline;
 	private File davLogFile = null;
+	private InvalidationBus invalidationBus;
+	private int listPageSize = 500;
+	private int davMaxChildren = 0;
+	private Configuration templateConfiguration;
+	private final Map<String, Object> enumModels = new HashMap<String, Object>();
 
 	static public DbwConfiguration getInstance() {
 		if (DbwConfiguration.instance == null) {
@@ -48,18 +72,64 @@ public class DbwConfiguration {
 		return DbwConfiguration.instance;
 	}
 
+	/**
+	 * stops the threads of the plugins, closes the invalidation bus, the backend
+	 * if it holds resources like pooled connections and finally the log, called
+	 * when the application stops
+	 */
+	static public void shutdown() {
+		DbwConfiguration configuration = DbwConfiguration.instance;
+		if (configuration == null) {
+			AsyncLog.shutdown();
+			return;
+		}
+		for (Plugin plugin : configuration.plugins) {
+			if (plugin instanceof Closeable) {
+				IOUtils.closeQuietly((Closeable) plugin);
+			}
+		}
+		if (configuration.invalidationBus != null) {
+			configuration.invalidationBus.close();
+		}
+		if (configuration.backend instanceof Closeable) {
+			try {
+				((Closeable) configuration.backend).close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		AsyncLog.shutdown();
+	}
+
 	public DbwConfiguration() {
 		InputStream resourceStream = null;
 		try {
 			Properties props = new Properties();
 			resourceStream = this.getClass().getResourceAsStream("/dbw.properties");
 			props.load(resourceStream);
+			this.initTemplates(props);
 			String backendClassName = props.getProperty("dbw.db.backend");
 			this.backend = (Backend) Class.forName(backendClassName).newInstance();
+			this.invalidationBus = (InvalidationBus) Class.forName(
+				props.getProperty("dbw.invalidation.bus",
+					LocalInvalidationBus.class.getName())).getConstructor()
+				.newInstance();
+			if (this.backend instanceof InvalidationBus.Listener) {
+				this.invalidationBus
+					.addListener((InvalidationBus.Listener) this.backend);
+			}
+			if (this.backend instanceof InvalidationBus.Publisher) {
+				((InvalidationBus.Publisher) this.backend)
+					.setInvalidationBus(this.invalidationBus);
+			}
 			String davLogFileName = props.getProperty("dbw.dav.log");
 			if (!StringUtils.isEmpty(davLogFileName)) {
 				this.davLogFile = new File(davLogFileName);
 			}
+			this.listPageSize = Integer.parseInt(props.getProperty(
+				"dbw.list.pagesize", "500"));
+			this.davMaxChildren = Integer.parseInt(props.getProperty(
+				"dbw.dav.maxchildren", "0"));
 			this.plugins.clear();
 			String pluginString = props.getProperty("dbw.wiki.plugins");
 			for (String pluginName : pluginString.split(",")) {
@@ -72,44 +142,138 @@ public class DbwConfiguration {
 					this.plugins.add(thisPlugin);
 				}
 			}
+			this.pipeline = new PluginPipeline(this.plugins, Long.parseLong(props
+				.getProperty("dbw.wiki.rendercache.size", "8388608")));
+			final PluginPipeline registered = this.pipeline;
+			Metrics.getInstance().addSource("rendercache", new Metrics.Source() {
+				@Override
+				public Map<String, Long> getStatistics() {
+					return registered.getStatistics();
+				}
+			});
 		} catch (InstantiationException e) {
 			e.printStackTrace();
 		} catch (IllegalAccessException e) {
 			e.printStackTrace();
 		} catch (ClassNotFoundException e) {
 			e.printStackTrace();
+		} catch (NoSuchMethodException e) {
+			e.printStackTrace();
+		} catch (InvocationTargetException e) {
+			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
 			IOUtils.closeQuietly(resourceStream);
 		}
+		Metrics.getInstance().addSource("log", new Metrics.Source() {
+			@Override
+			public Map<String, Long> getStatistics() {
+				return AsyncLog.getInstance().getStatistics();
+			}
+		});
+	}
+
+	/**
+	 * sets up the template engine shared by the web and the WebDAV views. The
+	 * page templates are parsed now so that syntax errors show up at startup,
+	 * and afterwards only checked for changes every dbw.templates.updatedelay
+	 * seconds (by default never).
+	 */
+	private void initTemplates(final Properties props) {
+		this.templateConfiguration = new Configuration();
+		this.templateConfiguration.setTemplateLoader(new MultiTemplateLoader(
+			new TemplateLoader[] {
+				new ClassTemplateLoader(DbwConfiguration.class,
+					"/jp/mathes/databaseWiki/web/templates"),
+				new ClassTemplateLoader(DbwConfiguration.class,
+					"/jp/mathes/databaseWiki/dav/templates") }));
+		this.templateConfiguration.setCacheStorage(new StrongCacheStorage());
+		this.templateConfiguration.setTemplateUpdateDelay(Integer.parseInt(props
+			.getProperty("dbw.templates.updatedelay",
+				String.valueOf(Integer.MAX_VALUE))));
+		for (String name : new String[] { "view.ftl", "edit.ftl", "list.ftl",
+			"dav.ftl" }) {
+			try {
+				this.templateConfiguration.getTemplate(name);
+			} catch (IOException e) {
+				System.err.println("Could not load template " + name);
+				e.printStackTrace();
+			}
+		}
+		try {
+			TemplateHashModel models = BeansWrapper.getDefaultInstance()
+				.getEnumModels();
+			this.enumModels.put("FieldType",
+				models.get("jp.mathes.databaseWiki.db.FieldType"));
+			this.enumModels.put("FieldUsage",
+				models.get("jp.mathes.databaseWiki.db.FieldUsage"));
+		} catch (TemplateModelException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public Configuration getTemplateConfiguration() {
+		return this.templateConfiguration;
+	}
+
+	/**
+	 * @return the precompiled template, reloaded only after the update delay
+	 */
+	public Template getTemplate(final String name) throws IOException {
+		return this.templateConfiguration.getTemplate(name);
+	}
+
+	/**
+	 * @return FieldType and FieldUsage as static models for the templates
+	 */
+	public Map<String, Object> getEnumModels() {
+		return this.enumModels;
 	}
 
 	public Backend getBackend() {
 		return this.backend;
 	}
 
+	public InvalidationBus getInvalidationBus() {
+		return this.invalidationBus;
+	}
+
+	/**
+	 * number of names shown on one page of a table listing
+	 */
+	public int getListPageSize() {
+		return this.listPageSize;
+	}
+
+	/**
+	 * maximum number of documents listed in a WebDAV collection
+	 */
+	public int getDavMaxChildren() {
+		return this.davMaxChildren;
+	}
+
 	public List<Plugin> getPlugins() {
 		return this.plugins;
 	}
 
+	/**
+	 * @return the plugins compiled for rendering, a regex plugin and the
+	 *         {@link jp.mathes.databaseWiki.wiki.Fusable} ones following it
+	 *         scan a field once
+	 */
+	public PluginPipeline getPipeline() {
+		return this.pipeline;
+	}
+
 	public void davLog(String message) {
 		davLog(message, null);
 	}
 
 	public void davLog(String message, Throwable e) {
 		if (this.davLogFile != null) {
-			try {
-				FileUtils.write(this.davLogFile, message, true);
-				FileUtils.write(this.davLogFile, "\n", true);
-				if (e != null) {
-					FileUtils.write(this.davLogFile, ExceptionUtils.getStackTrace(e),
-						true);
-					FileUtils.write(this.davLogFile, "\n", true);
-				}
-			} catch (IOException e1) {
-				e1.printStackTrace();
-			}
+			AsyncLog.getInstance().log(this.davLogFile,
+				e == null ? message : message + "\n" + ExceptionUtils.getStackTrace(e));
 		}
 	}
 }
@@ -26,6 +26,8 @@ public class DbwDispatchFilter extends DispatchFilter {
 		this.forward("/dbwservlet", "/$_db/$_table/$name/[edit|view|delete]_action?");
 		this.forward("/dbwservlet", "/$_db/$_table/$name/[save]_action;POST");
 		this.forward("/dbwservlet", "/$_db/$_table/_new");
+		this.forward("/dbwservlet", "/$_db/$_table/[export]_action/[csv|tsv]_format");
+		this.forward("/dbwservlet", "/$_db/$_table/[import]_action/[csv|tsv]_format;POST");
 		this.forward("/dbwservlet", "/[sql]_action;POST");
 	}
 }
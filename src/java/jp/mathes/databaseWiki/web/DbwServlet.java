@@ -16,6 +16,7 @@
 package jp.mathes.databaseWiki.web;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.Collections;
@@ -36,35 +37,30 @@ import jp.mathes.databaseWiki.db.Document;
 import jp.mathes.databaseWiki.db.DocumentNotFoundException;
 import jp.mathes.databaseWiki.db.Field;
 import jp.mathes.databaseWiki.db.FieldType;
-import jp.mathes.databaseWiki.wiki.Plugin;
+import jp.mathes.databaseWiki.db.QueryContext;
 import jp.mathes.databaseWiki.wiki.PluginException;
+import jp.mathes.databaseWiki.wiki.PluginPipeline;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
 
-import freemarker.cache.ClassTemplateLoader;
-import freemarker.ext.beans.BeansWrapper;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
-import freemarker.template.TemplateHashModel;
-import freemarker.template.TemplateModelException;
 
 public class DbwServlet extends HttpServlet {
 
 	private static final long serialVersionUID = 1L;
 	transient private Configuration cfg;
 	transient private Backend backend;
-	transient private List<Plugin> plugins;
+	transient private PluginPipeline pipeline;
 
 	@Override
 	public void init() throws ServletException {
 		super.init();
-		this.cfg = new Configuration();
-		this.cfg.setTemplateLoader(new ClassTemplateLoader(this.getClass(),
-			"templates"));
+		this.cfg = DbwConfiguration.getInstance().getTemplateConfiguration();
 		this.backend = DbwConfiguration.getInstance().getBackend();
-		this.plugins = DbwConfiguration.getInstance().getPlugins();
+		this.pipeline = DbwConfiguration.getInstance().getPipeline();
 	}
 
 	private void addCommonData(final Map<String, Object> data,
@@ -72,18 +68,7 @@ public class DbwServlet extends HttpServlet {
 		final String name) {
 		data.put("title", String.format("%s &gt; %s &gt; %s", db, table, name));
 		data.put("context", req.getContextPath());
-		try {
-			BeansWrapper wrapper = BeansWrapper.getDefaultInstance();
-			TemplateHashModel enumModels = wrapper.getEnumModels();
-			TemplateHashModel fieldTypeStatic = (TemplateHashModel) enumModels
-				.get("jp.mathes.databaseWiki.db.FieldType");
-			TemplateHashModel fieldUsageStatic = (TemplateHashModel) enumModels
-				.get("jp.mathes.databaseWiki.db.FieldUsage");
-			data.put("FieldType", fieldTypeStatic);
-			data.put("FieldUsage", fieldUsageStatic);
-		} catch (TemplateModelException e) {
-			e.printStackTrace();
-		}
+		data.putAll(DbwConfiguration.getInstance().getEnumModels());
 	}
 
 	@SuppressWarnings("unchecked")
@@ -117,6 +102,11 @@ public class DbwServlet extends HttpServlet {
 		final String user, final String password, final Configuration cfg,
 		final HttpServletResponse resp, final HttpServletRequest req)
 		throws IOException, TemplateException, BackendException, PluginException {
+		// the document and all queries of its plugins share one connection
+		QueryContext context = QueryContext.current();
+		if (context != null) {
+			context.setShared(true);
+		}
 		Document document = this.backend.getDocument(user, password, db, table,
 			name, false);
 		Template template = cfg.getTemplate("view.ftl");
@@ -124,10 +114,8 @@ public class DbwServlet extends HttpServlet {
 		Map<String, Field> allFields = document.getAllFields();
 		for (Field field : allFields.values()) {
 			if (field.getType() == FieldType.text) {
-				for (Plugin plugin : this.plugins) {
-					plugin.process(document, field.getName(), user, password,
-						this.backend);
-				}
+				this.pipeline.process(document, field.getName(), user, password,
+					this.backend);
 			}
 		}
 		data.put("fields", allFields);
@@ -176,15 +164,29 @@ public class DbwServlet extends HttpServlet {
 		final String user, final String password, final Configuration cfg2,
 		final HttpServletResponse resp, final HttpServletRequest req)
 		throws IOException, TemplateException, BackendException {
-		List<String> names = this.backend.getNames(user, password, db, table);
+		int pageSize = DbwConfiguration.getInstance().getListPageSize();
+		String after = req.getParameter("after");
+		String prefix = req.getParameter("prefix");
+		// one more than shown to know whether there is a next page
+		List<String> names = this.backend.getNames(user, password, db, table,
+			after, prefix, pageSize + 1);
 		Template template = this.cfg.getTemplate("list.ftl");
 		HashMap<String, Object> data = new HashMap<String, Object>();
 		this.addCommonData(data, req, db, table, "");
 		List<String> urls = new LinkedList<String>();
-		for (String name : names) {
+		for (String name : names.subList(0, Math.min(pageSize, names.size()))) {
 			urls.add(db + "/" + table + "/" + name);
 		}
 		data.put("urls", urls);
+		data.put("prefix", prefix == null ? "" : prefix);
+		data.put("listUrl", String.format("%s/%s/%s", req.getContextPath(), db,
+			table));
+		if (names.size() > pageSize) {
+			data.put("next", String.format("%s/%s/%s?after=%s&prefix=%s", req
+				.getContextPath(), db, table, URLEncoder.encode(
+				names.get(pageSize - 1), "UTF-8"), URLEncoder.encode(
+				prefix == null ? "" : prefix, "UTF-8")));
+		}
 		template.process(data, resp.getWriter());
 	}
 
@@ -204,6 +206,42 @@ public class DbwServlet extends HttpServlet {
 		template.process(data, resp.getWriter());
 	}
 
+	private void exportTable(final String db, final String table,
+		final String user, final String password, final HttpServletResponse resp,
+		final HttpServletRequest req) throws IOException, BackendException {
+		Backend.BulkFormat format = Backend.BulkFormat.valueOf(req
+			.getParameter("_format"));
+		resp.setContentType(format == Backend.BulkFormat.csv ? "text/csv; charset=UTF-8"
+			: "text/tab-separated-values; charset=UTF-8");
+		resp.setHeader("Content-Disposition", String.format(
+			"attachment; filename=\"%s.%s\"", table, format));
+		// streamed straight from the database into the response
+		this.backend.exportTable(user, password, db, table, format,
+			resp.getWriter());
+	}
+
+	/**
+	 * reads the request body as CSV or TSV (do not send it as form data) and
+	 * reports the committed rows while importing
+	 */
+	private void importTable(final String db, final String table,
+		final String user, final String password, final HttpServletResponse resp,
+		final HttpServletRequest req) throws IOException, BackendException {
+		Backend.BulkFormat format = Backend.BulkFormat.valueOf(req
+			.getParameter("_format"));
+		resp.setContentType("text/plain; charset=UTF-8");
+		final PrintWriter out = resp.getWriter();
+		long rows = this.backend.importTable(user, password, db, table, format,
+			req.getReader(), new Backend.ImportListener() {
+				@Override
+				public void committed(final long rows) {
+					out.println(String.format("%d rows committed", rows));
+					out.flush();
+				}
+			});
+		out.println(String.format("%d rows imported", rows));
+	}
+
 	private void executeSQL(final HttpServletRequest req,
 		final HttpServletResponse resp, final String user, final String password,
 		final String db, final String table, final String name) throws IOException,
@@ -237,6 +275,10 @@ public class DbwServlet extends HttpServlet {
 				"URL must be given as /db/[table[/name]][/action].");
 		} else if (StringUtils.isEmpty(table)) {
 			this.showTables(db, user, password, this.cfg, resp, req);
+		} else if ("export".equals(action)) {
+			this.exportTable(db, table, user, password, resp, req);
+		} else if ("import".equals(action)) {
+			this.importTable(db, table, user, password, resp, req);
 		} else if (StringUtils.isEmpty(name)) {
 			this.showNames(db, table, user, password, this.cfg, resp, req);
 		} else if (StringUtils.isEmpty(action)) {
@@ -275,6 +317,11 @@ public class DbwServlet extends HttpServlet {
 			password = StringUtils.substringAfter(userpw, ":");
 			resp.setStatus(HttpServletResponse.SC_OK);
 			resp.setContentType("application/xhtml+xml; charset=UTF-8");
+			// the servlet API only reports a client going away when writing the
+			// response fails, after the queries of the page ran. Only the limits
+			// of dbw.db.backend.postgres.query.* bound the queries until then,
+			// queries still running when the request ends are cancelled by exit.
+			QueryContext.enter();
 			try {
 				this.handleAction(req, resp, user, password);
 			} catch (InstantiationException e) {
@@ -295,6 +342,8 @@ public class DbwServlet extends HttpServlet {
 			} catch (PluginException e) {
 				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
 					"Rendering error: " + e.getMessage());
+			} finally {
+				QueryContext.exit();
 			}
 		} else {
 			resp.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
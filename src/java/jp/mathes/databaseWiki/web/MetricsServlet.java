@@ -0,0 +1,80 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import jp.mathes.databaseWiki.metrics.Metrics;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Writes {@link Metrics} as plain text, reachable as /_/metrics. Only the
+ * addresses in dbw.metrics.allow may read it, by default the local host. An
+ * empty list allows everybody.
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Set<String> allowed = new HashSet<String>();
+
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		InputStream resourceStream = null;
+		try {
+			Properties props = new Properties();
+			resourceStream = this.getClass().getResourceAsStream("/dbw.properties");
+			props.load(resourceStream);
+			for (String address : StringUtils.split(
+				props.getProperty("dbw.metrics.allow", "127.0.0.1,0:0:0:0:0:0:0:1"),
+				",")) {
+				if (!StringUtils.isBlank(address)) {
+					this.allowed.add(address.trim());
+				}
+			}
+		} catch (IOException e) {
+			throw new ServletException(e);
+		} finally {
+			IOUtils.closeQuietly(resourceStream);
+		}
+		// the backend registers its pools and caches when it is created
+		DbwConfiguration.getInstance();
+	}
+
+	@Override
+	protected void doGet(final HttpServletRequest req,
+		final HttpServletResponse resp) throws ServletException, IOException {
+		if (!this.allowed.isEmpty() && !this.allowed.contains(req.getRemoteAddr())) {
+			resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+		resp.setCharacterEncoding("UTF-8");
+		Metrics.getInstance().writeText(resp.getWriter());
+	}
+}
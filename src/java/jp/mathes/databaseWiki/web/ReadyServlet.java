@@ -0,0 +1,54 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.web;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Readiness check for load balancers on /_/ready: 200 once the
+ * {@link WarmupListener} is done, 503 before.
+ */
+public class ReadyServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected void doGet(final HttpServletRequest req,
+		final HttpServletResponse resp) throws ServletException, IOException {
+		resp.setContentType("text/plain; charset=UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+		if (!WarmupListener.isReady()) {
+			resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			resp.getWriter().println("warming up");
+			return;
+		}
+		resp.setStatus(HttpServletResponse.SC_OK);
+		PrintWriter out = resp.getWriter();
+		out.println("ready");
+		for (Map.Entry<String, String> failure : WarmupListener.getFailures()
+			.entrySet()) {
+			out.println("warm-up failed for " + failure.getKey() + ": "
+				+ failure.getValue());
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import jp.mathes.databaseWiki.db.Backend;
+import jp.mathes.databaseWiki.db.BackendException;
+import jp.mathes.databaseWiki.db.Warmable;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Warms up the backend for the databases in dbw.warmup.databases in the
+ * background when the application starts, dbw.warmup.threads of them at a
+ * time. Until it is done {@link ReadyServlet} reports the application as not
+ * ready. Without databases the application is ready right away.
+ */
+public class WarmupListener implements ServletContextListener {
+
+	private static volatile boolean ready = false;
+	private static final Map<String, String> failures = Collections
+		.synchronizedMap(new LinkedHashMap<String, String>());
+
+	private ExecutorService executor;
+
+	public static boolean isReady() {
+		return WarmupListener.ready;
+	}
+
+	/**
+	 * @return the error message per database that could not be warmed up
+	 */
+	public static Map<String, String> getFailures() {
+		synchronized (WarmupListener.failures) {
+			return new LinkedHashMap<String, String>(WarmupListener.failures);
+		}
+	}
+
+	@Override
+	public void contextInitialized(final ServletContextEvent event) {
+		List<String> databases = new ArrayList<String>();
+		int threads = 4;
+		String user = null;
+		String password = null;
+		InputStream resourceStream = null;
+		try {
+			Properties props = new Properties();
+			resourceStream = this.getClass().getResourceAsStream("/dbw.properties");
+			props.load(resourceStream);
+			for (String db : StringUtils.split(
+				props.getProperty("dbw.warmup.databases", ""), ",")) {
+				if (!StringUtils.isBlank(db)) {
+					databases.add(db.trim());
+				}
+			}
+			threads = Integer.parseInt(props.getProperty("dbw.warmup.threads", "4"));
+			user = props.getProperty("dbw.warmup.user");
+			password = props.getProperty("dbw.warmup.password");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			IOUtils.closeQuietly(resourceStream);
+		}
+		if (databases.isEmpty()) {
+			WarmupListener.ready = true;
+			return;
+		}
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		final List<String> toWarm = databases;
+		final String warmupUser = user;
+		final String warmupPassword = password;
+		Thread starter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				WarmupListener.this.warmUp(toWarm, warmupUser, warmupPassword);
+			}
+		}, "dbw-warmup");
+		starter.setDaemon(true);
+		starter.start();
+	}
+
+	private void warmUp(final List<String> databases, final String user,
+		final String password) {
+		try {
+			Backend backend = DbwConfiguration.getInstance().getBackend();
+			if (!(backend instanceof Warmable)) {
+				return;
+			}
+			final Warmable warmable = (Warmable) backend;
+			for (final String db : databases) {
+				this.executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							warmable.warmUp(user, password, db);
+						} catch (BackendException e) {
+							e.printStackTrace();
+							WarmupListener.failures.put(db, e.getMessage());
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+							WarmupListener.failures.put(db, e.toString());
+						}
+					}
+				});
+			}
+			this.executor.shutdown();
+			this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			this.executor.shutdown();
+			// a failed warm-up only costs the first requests their speed
+			WarmupListener.ready = true;
+		}
+	}
+
+	@Override
+	public void contextDestroyed(final ServletContextEvent event) {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+		}
+		WarmupListener.ready = false;
+	}
+}
@@ -8,9 +8,17 @@
   <link rel="icon" href="images/favicon.ico" type="image/x-icon" />
 </head>
   <body>
+    <#if listUrl??>
+      <form method="get" action="${listUrl?html}">
+        <p><input type="text" name="prefix" value="${prefix?html}" /> <input type="submit" value="Filter" /></p>
+      </form>
+    </#if>
     <#list urls as url>
       <a href="${context}/${url}">${url}</a><br/>
     </#list>
+    <#if next??>
+      <a href="${next?html}">next</a><br/>
+    </#if>
   </body>
 </html>
 </#compress>
\ No newline at end of file
@@ -15,52 +15,52 @@
 */
 package jp.mathes.databaseWiki.wiki;
 
-import java.util.regex.Matcher;
+import java.util.regex.MatchResult;
 import java.util.regex.Pattern;
 
 import jp.mathes.databaseWiki.db.Backend;
 import jp.mathes.databaseWiki.db.Document;
-import jp.mathes.databaseWiki.db.Field;
 
 import org.apache.commons.lang3.StringUtils;
 
 /**
  * matches {[db$table:name=desc]}, {[table:name=desc]}, {[name=desc]} and these
- * patterns without description and puts db, table, name, desc in groups
+ * patterns without description and puts db, table, name, desc in groups. It
+ * is {@link Fusable} as the markers only hold word characters and whitespace
+ * between the braces, so they can neither overlap other markers nor reach into
+ * the HTML rendered by other plugins.
  */
-public class DbwLinkPlugin implements Plugin {
+public class DbwLinkPlugin extends RegexPlugin implements Deterministic,
+	Fusable {
 
 	private static final Pattern REGEX = Pattern
 		.compile("\\{\\[(?:(?:([\\w]*)\\$)?([\\w]*):)?([\\w]*)(?:\\=([\\w\\s]+))?]}");
 
 	@Override
-	@SuppressWarnings("unchecked")
-	public void process(final Document doc, final String fieldname,
+	public Pattern getPattern() {
+		return DbwLinkPlugin.REGEX;
+	}
+
+	@Override
+	public String render(final MatchResult match, final Document doc,
 		final String user, final String password, final Backend backend) {
-		Field<String> field = doc.getAllFields().get(fieldname);
-		String renderedText = field.getValue();
-		Matcher matcher = DbwLinkPlugin.REGEX.matcher(renderedText);
-		while (matcher.find()) {
-			String path = "";
-			String prefix = ".";
-			String description = matcher.group(4);
-			if (StringUtils.isEmpty(matcher.group(1))) {
-				if (StringUtils.isEmpty(matcher.group(2))) {
-					path = matcher.group(3);
-					prefix = "..";
-				} else {
-					path = String.format("%s/%s", matcher.group(2), matcher.group(3));
-					prefix = "../..";
-				}
+		String path = "";
+		String prefix = ".";
+		String description = match.group(4);
+		if (StringUtils.isEmpty(match.group(1))) {
+			if (StringUtils.isEmpty(match.group(2))) {
+				path = match.group(3);
+				prefix = "..";
 			} else {
-				path = String.format("%s/%s/%s", matcher.group(1), matcher.group(2),
-					matcher.group(3));
-				prefix = "../../..";
+				path = String.format("%s/%s", match.group(2), match.group(3));
+				prefix = "../..";
 			}
-			renderedText = renderedText.replace(matcher.group(0), String.format(
-				"<a href=\"%s/%s/view\">%s</a>", prefix, path,
-				StringUtils.isEmpty(description) ? path : description));
+		} else {
+			path = String.format("%s/%s/%s", match.group(1), match.group(2),
+				match.group(3));
+			prefix = "../../..";
 		}
-		field.setValue(renderedText);
+		return String.format("<a href=\"%s/%s/view\">%s</a>", prefix, path,
+			StringUtils.isEmpty(description) ? path : description);
 	}
 }
@@ -0,0 +1,26 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.wiki;
+
+/**
+ * Marks {@link RegexPlugin}s whose markers can neither overlap the markers of
+ * other regex plugins nor reach across the border of their output, so that
+ * scanning the text and the output of the plugins before separately finds the
+ * same matches. {@link PluginPipeline} fuses a regex plugin into the scan of
+ * the plugins before it only if it is fusable.
+ */
+public interface Fusable {
+}
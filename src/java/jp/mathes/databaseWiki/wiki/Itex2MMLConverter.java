@@ -0,0 +1,248 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.wiki;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.mathes.databaseWiki.cache.BoundedCache;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Converts TeX to MathML with itex2MML on a pool of threads, every conversion
+ * starts the converter command once. A process not finished within the
+ * timeout is killed. Results are cached by the SHA-1 of the TeX, concurrent
+ * requests for the same TeX share one conversion. The output of a failed
+ * conversion is used like any other but not cached, so it is tried again on
+ * the next view.
+ */
+public class Itex2MMLConverter {
+
+	private static class Conversion {
+		private final String output;
+		private final boolean succeeded;
+
+		public Conversion(final String output, final boolean succeeded) {
+			this.output = output;
+			this.succeeded = succeeded;
+		}
+	}
+
+	private final String[] command;
+	private final long timeout;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService watchdog;
+	private final ConcurrentMap<String, Future<String>> pending = new ConcurrentHashMap<String, Future<String>>();
+	private final BoundedCache<String, String> cache;
+
+	/**
+	 * @param threads number of concurrent conversions
+	 * @param timeout seconds a single conversion may take
+	 * @param cacheSize bytes of cached MathML, 0 disables the cache
+	 */
+	public Itex2MMLConverter(final String[] command, final int threads,
+		final int timeout, final long cacheSize) {
+		this.command = command;
+		this.timeout = timeout * 1000L;
+		this.cache = BoundedCache.forStrings(cacheSize);
+		final AtomicInteger threadNumber = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					Thread thread = new Thread(r, "dbw-itex2mml-"
+						+ threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		this.watchdog = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					Thread thread = new Thread(r, "dbw-itex2mml-watchdog");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	/**
+	 * starts converting the TeX unless it is cached or already being converted.
+	 * The caller keeps the future until it has used the result, the converter
+	 * only keeps what the cache admits.
+	 */
+	public Future<String> prefetch(final String tex) {
+		String key = DigestUtils.shaHex(tex);
+		final String cached = this.cache.get(key);
+		if (cached != null) {
+			FutureTask<String> done = new FutureTask<String>(
+				new Callable<String>() {
+					@Override
+					public String call() {
+						return cached;
+					}
+				});
+			done.run();
+			return done;
+		}
+		return this.submit(key, tex);
+	}
+
+	public String convert(final String tex) throws PluginException {
+		return this.await(this.prefetch(tex));
+	}
+
+	/**
+	 * @return the result of a future returned by {@link #prefetch(String)}
+	 */
+	public String await(final Future<String> future) throws PluginException {
+		try {
+			// bounded by the watchdog of the conversions queued before
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof PluginException) {
+				throw (PluginException) e.getCause();
+			}
+			if (e.getCause() instanceof Exception) {
+				throw new PluginException((Exception) e.getCause());
+			}
+			throw new PluginException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PluginException(e);
+		}
+	}
+
+	private Future<String> submit(final String key, final String tex) {
+		Future<String> future = this.pending.get(key);
+		if (future != null) {
+			return future;
+		}
+		FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				try {
+					Conversion conversion = Itex2MMLConverter.this.fork(tex);
+					if (conversion.succeeded) {
+						Itex2MMLConverter.this.cache.put(key, conversion.output);
+					}
+					return conversion.output;
+				} finally {
+					Itex2MMLConverter.this.pending.remove(key);
+				}
+			}
+		});
+		future = this.pending.putIfAbsent(key, task);
+		if (future != null) {
+			return future;
+		}
+		this.executor.execute(task);
+		return task;
+	}
+
+	private Conversion fork(final String tex) throws IOException,
+		PluginException, InterruptedException {
+		final Process process = new ProcessBuilder(this.command).start();
+		ScheduledFuture<?> watch = this.watch(process);
+		// read concurrently, a full stderr pipe would block the converter
+		final ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		Thread drain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					IOUtils.copy(process.getErrorStream(), errors);
+				} catch (IOException e) {
+					// the process was killed
+				}
+			}
+		}, "dbw-itex2mml-stderr");
+		drain.setDaemon(true);
+		drain.start();
+		try {
+			process.getOutputStream().write(tex.getBytes("UTF-8"));
+			process.getOutputStream().close();
+			BufferedReader stdout = new BufferedReader(new InputStreamReader(
+				process.getInputStream(), "UTF-8"));
+			String line = null;
+			StringBuilder sb = new StringBuilder();
+			while ((line = stdout.readLine()) != null) {
+				sb.append(line);
+			}
+			stdout.close();
+			int status = process.waitFor();
+			drain.join();
+			if (!watch.cancel(false)) {
+				throw this.timedOut();
+			}
+			if (status != 0 || sb.length() == 0) {
+				System.err.println(String.format("itex2MML exited with %d: %s",
+					status, errors.toString("UTF-8").trim()));
+				return new Conversion(sb.toString(), false);
+			}
+			return new Conversion(sb.toString(), true);
+		} finally {
+			watch.cancel(false);
+			process.destroy();
+		}
+	}
+
+	private ScheduledFuture<?> watch(final Process process) {
+		return this.watchdog.schedule(new Runnable() {
+			@Override
+			public void run() {
+				process.destroy();
+			}
+		}, this.timeout, TimeUnit.MILLISECONDS);
+	}
+
+	private PluginException timedOut() {
+		return new PluginException(String.format(
+			"itex2MML did not finish within %d seconds", this.timeout / 1000));
+	}
+
+	/**
+	 * stops the conversions and the watchdog
+	 */
+	public void close() {
+		this.executor.shutdownNow();
+		this.watchdog.shutdownNow();
+	}
+
+	public Map<String, Long> getStatistics() {
+		Map<String, Long> result = this.cache.getStatistics();
+		result.put("pending", (long) this.pending.size());
+		return result;
+	}
+}
@@ -15,52 +15,128 @@
 */
 package jp.mathes.databaseWiki.wiki;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import jp.mathes.databaseWiki.db.Backend;
 import jp.mathes.databaseWiki.db.Document;
-import jp.mathes.databaseWiki.db.Field;
+import jp.mathes.databaseWiki.metrics.Metrics;
 
-public class Itex2MMLPlugin implements Plugin {
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Replaces {math}...{/math} with the MathML produced by itex2MML. All regions
+ * of a text are handed to the {@link Itex2MMLConverter} before the first one
+ * is rendered, so they are converted concurrently. The futures are kept for
+ * the rendering thread until their region is rendered, so a result the cache
+ * did not admit or an error is not converted again.
+ */
+public class Itex2MMLPlugin extends RegexPlugin implements Deterministic,
+	Closeable {
 
 	private static final Pattern REGEX = Pattern.compile(
 		"\\{math\\}.*?\\{/math\\}", Pattern.MULTILINE);
 
+	private final Itex2MMLConverter converter;
+	/** per region of the text being rendered, the same TeX may occur twice */
+	private final ThreadLocal<Map<String, LinkedList<Future<String>>>> prefetched = new ThreadLocal<Map<String, LinkedList<Future<String>>>>();
+
+	public Itex2MMLPlugin() {
+		String command = "itex2MML";
+		int threads = 4;
+		int timeout = 10;
+		long cacheSize = 4194304;
+		InputStream resourceAsStream = null;
+		try {
+			Properties props = new Properties();
+			resourceAsStream = this.getClass().getResourceAsStream("/dbw.properties");
+			props.load(resourceAsStream);
+			command = props.getProperty("dbw.wiki.itex2mml.command", command);
+			threads = Integer.parseInt(props.getProperty(
+				"dbw.wiki.itex2mml.threads", "4"));
+			timeout = Integer.parseInt(props.getProperty(
+				"dbw.wiki.itex2mml.timeout", "10"));
+			cacheSize = Long.parseLong(props.getProperty(
+				"dbw.wiki.itex2mml.cache.size", "4194304"));
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			IOUtils.closeQuietly(resourceAsStream);
+		}
+		this.converter = new Itex2MMLConverter(StringUtils.split(command),
+			threads, timeout, cacheSize);
+		Metrics.getInstance().addSource("itex2mml", new Metrics.Source() {
+			@Override
+			public Map<String, Long> getStatistics() {
+				return Itex2MMLPlugin.this.converter.getStatistics();
+			}
+		});
+	}
+
 	@Override
-	@SuppressWarnings("unchecked")
-	public void process(final Document doc, final String fieldname,
+	public void close() {
+		this.converter.close();
+	}
+
+	private static String toTex(final String region) {
+		return region.replace("{math}", "$").replace("{/math}", "$");
+	}
+
+	@Override
+	public Pattern getPattern() {
+		return Itex2MMLPlugin.REGEX;
+	}
+
+	@Override
+	public void prepare(final String text) {
+		Map<String, LinkedList<Future<String>>> futures = new HashMap<String, LinkedList<Future<String>>>();
+		Matcher matcher = Itex2MMLPlugin.REGEX.matcher(text);
+		while (matcher.find()) {
+			String tex = Itex2MMLPlugin.toTex(matcher.group());
+			LinkedList<Future<String>> regions = futures.get(tex);
+			if (regions == null) {
+				regions = new LinkedList<Future<String>>();
+				regions.add(this.converter.prefetch(tex));
+				futures.put(tex, regions);
+			} else {
+				regions.add(regions.getFirst());
+			}
+		}
+		if (futures.isEmpty()) {
+			this.prefetched.remove();
+		} else {
+			this.prefetched.set(futures);
+		}
+	}
+
+	@Override
+	public String render(final MatchResult match, final Document doc,
 		final String user, final String password, final Backend backend)
 		throws PluginException {
-		Field<String> field = doc.getAllFields().get(fieldname);
-		String renderedText = field.getValue();
-		Matcher matcher = Itex2MMLPlugin.REGEX.matcher(renderedText);
-		while (matcher.find()) {
-			String thisMathRegion = matcher.group(0).replace("{math}", "$");
-			thisMathRegion = thisMathRegion.replace("{/math}", "$");
-			Process process;
-			try {
-				process = Runtime.getRuntime().exec("itex2MML");
-				process.getOutputStream().write(thisMathRegion.getBytes("UTF-8"));
-				process.getOutputStream().flush();
-				process.getOutputStream().close();
-				BufferedReader stdout = new BufferedReader(new InputStreamReader(
-					process.getInputStream()));
-				String line = null;
-				StringBuilder sb = new StringBuilder();
-				while ((line = stdout.readLine()) != null) {
-					sb.append(line);
-				}
-				stdout.close();
-				renderedText = renderedText.replace(matcher.group(0), sb.toString());
-				process.destroy();
-			} catch (IOException e) {
-				throw new PluginException(e);
+		String tex = Itex2MMLPlugin.toTex(match.group(0));
+		Map<String, LinkedList<Future<String>>> futures = this.prefetched.get();
+		LinkedList<Future<String>> regions = futures == null ? null : futures
+			.get(tex);
+		Future<String> future = regions == null ? null : regions.poll();
+		if (regions != null && regions.isEmpty()) {
+			futures.remove(tex);
+			if (futures.isEmpty()) {
+				this.prefetched.remove();
 			}
 		}
-		field.setValue(renderedText);
+		if (future == null) {
+			return this.converter.convert(tex);
+		}
+		return this.converter.await(future);
 	}
 }
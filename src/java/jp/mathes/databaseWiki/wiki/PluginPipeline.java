@@ -0,0 +1,327 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.wiki;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jp.mathes.databaseWiki.cache.BoundedCache;
+import jp.mathes.databaseWiki.db.Backend;
+import jp.mathes.databaseWiki.db.Document;
+import jp.mathes.databaseWiki.db.Field;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The plugins of dbw.wiki.plugins in their order. A {@link RegexPlugin}
+ * followed by {@link Fusable} ones is compiled into one alternation of their
+ * patterns, so a field is scanned once for all of them and written into a
+ * single buffer. The output of a plugin is scanned by the later plugins of the
+ * run right away, so the result is the same as if they ran one after the
+ * other.
+ * <p>
+ * The rendering of a text is cached by a hash of the text and the plugin list
+ * if only {@link Deterministic} plugins changed it. Texts some other plugin
+ * acted on, e.g. with SQL results of the user, are rendered every time.
+ */
+public class PluginPipeline implements Plugin {
+
+	private static final Pattern BACK_REFERENCE = Pattern
+		.compile("\\\\(?:[1-9]|k<)");
+
+	/**
+	 * the groups of one alternative seen as the match of its plugin
+	 */
+	private static class AlternativeMatch implements MatchResult {
+		private final Matcher matcher;
+		private final int offset;
+		private final int groupCount;
+
+		public AlternativeMatch(final Matcher matcher, final int offset,
+			final int groupCount) {
+			this.matcher = matcher;
+			this.offset = offset;
+			this.groupCount = groupCount;
+		}
+
+		@Override
+		public int start() {
+			return this.matcher.start(this.offset);
+		}
+
+		@Override
+		public int start(final int group) {
+			return this.matcher.start(this.offset + group);
+		}
+
+		@Override
+		public int end() {
+			return this.matcher.end(this.offset);
+		}
+
+		@Override
+		public int end(final int group) {
+			return this.matcher.end(this.offset + group);
+		}
+
+		@Override
+		public String group() {
+			return this.matcher.group(this.offset);
+		}
+
+		@Override
+		public String group(final int group) {
+			if (group > this.groupCount) {
+				throw new IndexOutOfBoundsException("No group " + group);
+			}
+			return this.matcher.group(this.offset + group);
+		}
+
+		@Override
+		public int groupCount() {
+			return this.groupCount;
+		}
+	}
+
+	/**
+	 * collects whether a rendering may be cached
+	 */
+	private static class Trace {
+		private boolean deterministic = true;
+	}
+
+	private static class FusedPlugins implements Plugin {
+		private final List<RegexPlugin> plugins;
+		private final Pattern pattern;
+		private final int[] offsets;
+		private final int[] groupCounts;
+
+		public FusedPlugins(final List<RegexPlugin> plugins) {
+			this.plugins = plugins;
+			this.offsets = new int[plugins.size()];
+			this.groupCounts = new int[plugins.size()];
+			StringBuilder alternation = new StringBuilder();
+			int group = 1;
+			for (int i = 0; i < plugins.size(); i++) {
+				Pattern pluginPattern = plugins.get(i).getPattern();
+				if (i > 0) {
+					alternation.append('|');
+				}
+				alternation.append("((?")
+					.append(PluginPipeline.inlineFlags(pluginPattern.flags()))
+					.append(':').append(pluginPattern.pattern()).append("))");
+				this.offsets[i] = group;
+				this.groupCounts[i] = pluginPattern.matcher("").groupCount();
+				group += 1 + this.groupCounts[i];
+			}
+			this.pattern = Pattern.compile(alternation.toString());
+		}
+
+		@Override
+		public void process(final Document doc, final String fieldname,
+			final String user, final String password, final Backend backend)
+			throws PluginException {
+			this.process(doc, fieldname, user, password, backend, null);
+		}
+
+		@SuppressWarnings("unchecked")
+		public void process(final Document doc, final String fieldname,
+			final String user, final String password, final Backend backend,
+			final Trace trace) throws PluginException {
+			Field<String> field = doc.getAllFields().get(fieldname);
+			String text = field.getValue();
+			if (text == null) {
+				return;
+			}
+			for (RegexPlugin plugin : this.plugins) {
+				plugin.prepare(text);
+			}
+			Matcher matcher = this.pattern.matcher(text);
+			StringBuilder result = null;
+			int copied = 0;
+			while (matcher.find()) {
+				if (result == null) {
+					result = new StringBuilder(text.length() + 256);
+				}
+				int plugin = 0;
+				while (matcher.start(this.offsets[plugin]) < 0) {
+					plugin++;
+				}
+				if (trace != null
+					&& !(this.plugins.get(plugin) instanceof Deterministic)) {
+					trace.deterministic = false;
+				}
+				String rendered = this.plugins.get(plugin).render(
+					new AlternativeMatch(matcher, this.offsets[plugin],
+						this.groupCounts[plugin]), doc, user, password, backend);
+				// the plugins after it would have scanned its output
+				for (int later = plugin + 1; later < this.plugins.size(); later++) {
+					RegexPlugin laterPlugin = this.plugins.get(later);
+					String replaced = laterPlugin.replace(rendered, doc, user, password,
+						backend);
+					if (trace != null && replaced != rendered
+						&& !(laterPlugin instanceof Deterministic)) {
+						trace.deterministic = false;
+					}
+					rendered = replaced;
+				}
+				result.append(text, copied, matcher.start()).append(rendered);
+				copied = matcher.end();
+			}
+			if (result != null) {
+				result.append(text, copied, text.length());
+				field.setValue(result.toString());
+			}
+		}
+	}
+
+	private final List<Plugin> stages = new ArrayList<Plugin>();
+	private final BoundedCache<String, String> rendered;
+	private final String signature;
+
+	public PluginPipeline(final List<Plugin> plugins) {
+		this(plugins, 0);
+	}
+
+	/**
+	 * @param maxBytes size of the cached renderings, 0 disables the cache
+	 */
+	public PluginPipeline(final List<Plugin> plugins, final long maxBytes) {
+		this.rendered = BoundedCache.forStrings(maxBytes);
+		StringBuilder names = new StringBuilder();
+		List<RegexPlugin> run = new ArrayList<RegexPlugin>();
+		for (Plugin plugin : plugins) {
+			names.append(plugin.getClass().getName()).append(',');
+			if (plugin instanceof RegexPlugin
+				&& PluginPipeline.isFusable(((RegexPlugin) plugin).getPattern())) {
+				if (!(plugin instanceof Fusable)) {
+					// it has to see the output of the plugins before it
+					this.addRun(run);
+					run = new ArrayList<RegexPlugin>();
+				}
+				run.add((RegexPlugin) plugin);
+			} else {
+				this.addRun(run);
+				run = new ArrayList<RegexPlugin>();
+				this.stages.add(plugin);
+			}
+		}
+		this.addRun(run);
+		this.signature = names.toString();
+	}
+
+	private void addRun(final List<RegexPlugin> run) {
+		if (run.size() == 1) {
+			this.stages.add(run.get(0));
+		} else if (run.size() > 1) {
+			this.stages.add(new FusedPlugins(run));
+		}
+	}
+
+	/**
+	 * group numbers shift in the alternation, so back references would point to
+	 * the wrong group
+	 */
+	private static boolean isFusable(final Pattern pattern) {
+		return PluginPipeline.inlineFlags(pattern.flags()) != null
+			&& !PluginPipeline.BACK_REFERENCE.matcher(pattern.pattern()).find();
+	}
+
+	/**
+	 * @return the flags as used in (?flags:...) or null if they cannot be
+	 *         expressed that way
+	 */
+	private static String inlineFlags(final int flags) {
+		StringBuilder result = new StringBuilder();
+		int supported = Pattern.CASE_INSENSITIVE | Pattern.MULTILINE
+			| Pattern.DOTALL | Pattern.UNICODE_CASE | Pattern.COMMENTS
+			| Pattern.UNIX_LINES;
+		if ((flags & ~supported) != 0) {
+			return null;
+		}
+		if ((flags & Pattern.CASE_INSENSITIVE) != 0) {
+			result.append('i');
+		}
+		if ((flags & Pattern.MULTILINE) != 0) {
+			result.append('m');
+		}
+		if ((flags & Pattern.DOTALL) != 0) {
+			result.append('s');
+		}
+		if ((flags & Pattern.UNICODE_CASE) != 0) {
+			result.append('u');
+		}
+		if ((flags & Pattern.COMMENTS) != 0) {
+			result.append('x');
+		}
+		if ((flags & Pattern.UNIX_LINES) != 0) {
+			result.append('d');
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @return the stages the plugins were compiled into, for diagnostics
+	 */
+	public List<Plugin> getStages() {
+		return Collections.unmodifiableList(this.stages);
+	}
+
+	public Map<String, Long> getStatistics() {
+		return this.rendered.getStatistics();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void process(final Document doc, final String fieldname,
+		final String user, final String password, final Backend backend)
+		throws PluginException {
+		Field<String> field = doc.getAllFields().get(fieldname);
+		String key = null;
+		if (this.rendered.isEnabled() && field.getValue() != null) {
+			key = DigestUtils.shaHex(this.signature + "\u0000" + field.getValue());
+			String cached = this.rendered.get(key);
+			if (cached != null) {
+				field.setValue(cached);
+				return;
+			}
+		}
+		Trace trace = new Trace();
+		for (Plugin stage : this.stages) {
+			if (stage instanceof FusedPlugins) {
+				((FusedPlugins) stage).process(doc, fieldname, user, password,
+					backend, trace);
+				continue;
+			}
+			String before = field.getValue();
+			stage.process(doc, fieldname, user, password, backend);
+			// a plugin leaving the text alone did not depend on anything else
+			if (!(stage instanceof Deterministic)
+				&& !StringUtils.equals(before, field.getValue())) {
+				trace.deterministic = false;
+			}
+		}
+		if (key != null && trace.deterministic && field.getValue() != null) {
+			this.rendered.put(key, field.getValue());
+		}
+	}
+}
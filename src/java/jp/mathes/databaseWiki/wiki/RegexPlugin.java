@@ -0,0 +1,90 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.wiki;
+
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jp.mathes.databaseWiki.db.Backend;
+import jp.mathes.databaseWiki.db.Document;
+import jp.mathes.databaseWiki.db.Field;
+
+/**
+ * Plugin replacing every match of a pattern with rendered text in one pass
+ * over the field. {@link PluginPipeline} fuses consecutive regex plugins into
+ * a single scan if the later ones are {@link Fusable} and their patterns do not
+ * use back references.
+ */
+public abstract class RegexPlugin implements Plugin {
+
+	public abstract Pattern getPattern();
+
+	/**
+	 * @return the text replacing the match
+	 */
+	public abstract String render(MatchResult match, Document doc, String user,
+		String password, Backend backend) throws PluginException;
+
+	/**
+	 * called with the whole text before it is scanned, e.g. to start slow work
+	 * for all matches at once
+	 */
+	public void prepare(final String text) {
+	}
+
+	/**
+	 * @return the text with all matches rendered, the same instance if there
+	 *         was no match
+	 */
+	public String replace(final String text, final Document doc,
+		final String user, final String password, final Backend backend)
+		throws PluginException {
+		Matcher matcher = this.getPattern().matcher(text);
+		StringBuilder result = null;
+		int copied = 0;
+		while (matcher.find()) {
+			if (result == null) {
+				result = new StringBuilder(text.length() + 256);
+			}
+			result.append(text, copied, matcher.start()).append(
+				this.render(matcher, doc, user, password, backend));
+			copied = matcher.end();
+		}
+		if (result == null) {
+			return text;
+		}
+		result.append(text, copied, text.length());
+		return result.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void process(final Document doc, final String fieldname,
+		final String user, final String password, final Backend backend)
+		throws PluginException {
+		Field<String> field = doc.getAllFields().get(fieldname);
+		String text = field.getValue();
+		if (text == null) {
+			return;
+		}
+		this.prepare(text);
+		String result = this.replace(text, doc, user, password, backend);
+		if (result != text) {
+			field.setValue(result);
+		}
+	}
+}
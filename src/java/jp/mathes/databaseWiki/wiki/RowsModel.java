@@ -0,0 +1,113 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.wiki;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.mathes.databaseWiki.db.Backend.Row;
+import jp.mathes.databaseWiki.db.Backend.RowIterator;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateModelIterator;
+import freemarker.template.TemplateSequenceModel;
+
+/**
+ * The rows of a SQL loop for the template. A plain [#list rows as row] streams
+ * the rows from the database cursor without keeping them. Index access or
+ * ?size read the remaining rows into memory first, like the list used before,
+ * which only works as long as the rows have not been streamed yet.
+ */
+public class RowsModel implements TemplateCollectionModel,
+	TemplateSequenceModel {
+
+	private final RowIterator rows;
+	private final ObjectWrapper wrapper;
+	private List<Row> materialized = null;
+	private boolean streamed = false;
+
+	public RowsModel(final RowIterator rows, final ObjectWrapper wrapper) {
+		this.rows = rows;
+		this.wrapper = wrapper;
+	}
+
+	private List<Row> materialize() throws TemplateModelException {
+		if (this.materialized == null) {
+			if (this.streamed) {
+				throw new TemplateModelException(
+					"The rows were already listed and can only be read once.");
+			}
+			this.materialized = new ArrayList<Row>();
+			while (this.rows.hasNext()) {
+				this.materialized.add(this.rows.next());
+			}
+		}
+		return this.materialized;
+	}
+
+	@Override
+	public TemplateModelIterator iterator() throws TemplateModelException {
+		if (this.materialized != null) {
+			return new Iterator(this.materialized.iterator());
+		}
+		if (this.streamed) {
+			throw new TemplateModelException(
+				"The rows were already listed and can only be read once.");
+		}
+		this.streamed = true;
+		return new Iterator(this.rows);
+	}
+
+	@Override
+	public TemplateModel get(final int index) throws TemplateModelException {
+		List<Row> list = this.materialize();
+		return index < 0 || index >= list.size() ? null : this.wrapper.wrap(list
+			.get(index));
+	}
+
+	@Override
+	public int size() throws TemplateModelException {
+		return this.materialize().size();
+	}
+
+	private class Iterator implements TemplateModelIterator {
+		private final java.util.Iterator<Row> it;
+
+		public Iterator(final java.util.Iterator<Row> it) {
+			this.it = it;
+		}
+
+		@Override
+		public boolean hasNext() throws TemplateModelException {
+			try {
+				return this.it.hasNext();
+			} catch (IllegalStateException e) {
+				throw new TemplateModelException(e);
+			}
+		}
+
+		@Override
+		public TemplateModel next() throws TemplateModelException {
+			try {
+				return RowsModel.this.wrapper.wrap(this.it.next());
+			} catch (IllegalStateException e) {
+				throw new TemplateModelException(e);
+			}
+		}
+	}
+}
@@ -16,19 +16,16 @@
 package jp.mathes.databaseWiki.wiki;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.HashMap;
-import java.util.regex.Matcher;
+import java.util.regex.MatchResult;
 import java.util.regex.Pattern;
 
 import jp.mathes.databaseWiki.db.Backend;
 import jp.mathes.databaseWiki.db.Document;
-import jp.mathes.databaseWiki.db.Field;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 
-import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 
@@ -40,62 +37,53 @@ import freemarker.template.TemplateException;
  * The SQLServlet is used to execute actions from buttons
  * 
  */
-public class SQLButtonPlugin implements Plugin {
+public class SQLButtonPlugin extends RegexPlugin {
 
 	private static final Pattern REGEX = Pattern.compile(
 		"\\{sql\\s+type=&quot;button&quot;\\}\\s*(.*?)\\s*\\{/sql\\}",
 		Pattern.MULTILINE | Pattern.DOTALL);
 
-	@SuppressWarnings("unchecked")
 	@Override
-	public void process(final Document doc, final String fieldname,
+	public Pattern getPattern() {
+		return SQLButtonPlugin.REGEX;
+	}
+
+	@Override
+	public String render(final MatchResult match, final Document doc,
 		final String user, final String password, final Backend backend)
 		throws PluginException {
-		Field<String> field = doc.getAllFields().get(fieldname);
-		String renderedText = field.getValue();
-		if (renderedText == null) {
-			return;
-		}
-		Configuration conf = new Configuration();
-		conf.setTagSyntax(Configuration.SQUARE_BRACKET_TAG_SYNTAX);
-		Matcher buttonMatcher = SQLButtonPlugin.REGEX.matcher(renderedText);
-		while (buttonMatcher.find()) {
-			String statement = buttonMatcher.group(1);
-			statement = statement.replace("&quot;", "\"").replace("&#39;", "'");
-			Template template;
-			try {
-				template = new Template("name", new StringReader(statement), conf);
-				HashMap<String, Object> data = new HashMap<String, Object>();
-				data.put("doc", doc);
-				data.put("fields", doc.getAllFields());
-				StringWriter sw = new StringWriter();
-				template.process(data, sw);
-				statement = sw.getBuffer().toString();
-				StringBuilder sb = new StringBuilder(
-					"<form class=\"execute\" method=\"post\" action=\"../../../sql\">");
-				sb.append("<input type=\"hidden\" name=\"statement\" value=\"")
-					.append(StringEscapeUtils.escapeXml(statement))
-					.append("\" />")
-					.append("<input type=\"hidden\" name=\"_db\" value=\"")
-					.append(doc.getDatabase())
-					.append("\" />")
-					.append("<input type=\"hidden\" name=\"_table\" value=\"")
-					.append(doc.getTable())
-					.append("\" />")
-					.append("<input type=\"hidden\" name=\"name\" value=\"")
-					.append(doc.getName())
-					.append("\" />")
-					.append(
-						"<input type=\"submit\" name=\"execute\" value=\"execute\" />")
-					.append("</form>");
-				renderedText = renderedText.replace(buttonMatcher.group(0),
-					sb.toString());
-				field.setValue(renderedText);
-			} catch (TemplateException e) {
-				throw new PluginException(e);
-			} catch (IOException e) {
-				throw new PluginException(e);
-			}
+		String statement = match.group(1);
+		statement = statement.replace("&quot;", "\"").replace("&#39;", "'");
+		try {
+			Template template = TemplateCache.getInstance(TemplateCache.SQL).get(
+				statement);
+			HashMap<String, Object> data = new HashMap<String, Object>();
+			data.put("doc", doc);
+			data.put("fields", doc.getAllFields());
+			StringWriter sw = new StringWriter();
+			template.process(data, sw);
+			statement = sw.getBuffer().toString();
+		} catch (TemplateException e) {
+			throw new PluginException(e);
+		} catch (IOException e) {
+			throw new PluginException(e);
 		}
+		StringBuilder sb = new StringBuilder(
+			"<form class=\"execute\" method=\"post\" action=\"../../../sql\">");
+		sb.append("<input type=\"hidden\" name=\"statement\" value=\"")
+			.append(StringEscapeUtils.escapeXml(statement))
+			.append("\" />")
+			.append("<input type=\"hidden\" name=\"_db\" value=\"")
+			.append(doc.getDatabase())
+			.append("\" />")
+			.append("<input type=\"hidden\" name=\"_table\" value=\"")
+			.append(doc.getTable())
+			.append("\" />")
+			.append("<input type=\"hidden\" name=\"name\" value=\"")
+			.append(doc.getName())
+			.append("\" />")
+			.append("<input type=\"submit\" name=\"execute\" value=\"execute\" />")
+			.append("</form>");
+		return sb.toString();
 	}
 }
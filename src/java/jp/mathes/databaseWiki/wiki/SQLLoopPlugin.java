@@ -15,20 +15,36 @@
 */
 package jp.mathes.databaseWiki.wiki;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import jp.mathes.databaseWiki.db.Backend;
-import jp.mathes.databaseWiki.db.Backend.Row;
+import jp.mathes.databaseWiki.db.Backend.RowIterator;
 import jp.mathes.databaseWiki.db.BackendException;
 import jp.mathes.databaseWiki.db.Document;
 import jp.mathes.databaseWiki.db.Field;
-import freemarker.template.Configuration;
+import jp.mathes.databaseWiki.db.QueryContext;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 
@@ -38,13 +54,242 @@ import freemarker.template.TemplateException;
  * {sql type=loop} {query}[SQL query with freemarker variables]{/query}
  * {body}[wiki body to render]{/body} {/sql}
  * 
+ * The limits of the backend can be lowered or raised per loop with the
+ * attributes timeout (seconds), maxrows and maxbytes, e.g. {sql type="loop"
+ * timeout="5" maxrows="100"}. A failing query is rendered as error in place of
+ * the loop.
+ * 
+ * The loops of a field run in turn on the connection of the page unless
+ * dbw.wiki.sqlloop.parallel is above 1. Then the queries of a field with
+ * several loops run concurrently on their own connections, at most parallel
+ * at a time and fewer than the connections of a pool, so a view never holds a
+ * whole pool. The field waits at most dbw.wiki.sqlloop.timeout seconds for
+ * all of them (0 waits until they are done).
  */
-public class SQLLoopPlugin implements Plugin {
+public class SQLLoopPlugin implements Plugin, Closeable {
 
 	private static final Pattern REGEX = Pattern
 		.compile(
-			"\\{sql\\s+type=\"loop\"\\}\\s*\\{query\\}(.*?)\\{/query\\}\\s*\\{body\\}(.*?)\\{/body\\}\\s*\\{/sql\\}",
+			"\\{sql\\s+type=\"loop\"((?:\\s+\\w+=\"\\d+\")*)\\s*\\}\\s*\\{query\\}(.*?)\\{/query\\}\\s*\\{body\\}(.*?)\\{/body\\}\\s*\\{/sql\\}",
 			Pattern.MULTILINE | Pattern.DOTALL);
+	private static final Pattern ATTRIBUTE = Pattern.compile("(\\w+)=\"(\\d+)\"");
+
+	/**
+	 * one loop block, its query runs in its own {@link QueryContext} which is
+	 * cancelled with the context of the page
+	 */
+	private static class Loop implements QueryContext.Cancellable {
+		private final int start;
+		private final int end;
+		private final String body;
+		private final QueryContext context = new QueryContext();
+		private String query;
+		private Future<?> future;
+		private RowIterator rows;
+		private BackendException error;
+		private boolean abandoned = false;
+
+		public Loop(final int start, final int end, final String query,
+			final String body) {
+			this.start = start;
+			this.end = end;
+			this.query = query;
+			this.body = body;
+		}
+
+		public synchronized void done(final RowIterator rows,
+			final BackendException error) {
+			if (this.abandoned) {
+				if (rows != null) {
+					rows.close();
+				}
+			} else {
+				this.rows = rows;
+				this.error = error;
+			}
+		}
+
+		/**
+		 * cancels the query and closes its rows even if they are still to come
+		 */
+		public synchronized void abandon() {
+			this.abandoned = true;
+			this.context.cancel();
+			if (this.rows != null) {
+				this.rows.close();
+				this.rows = null;
+			}
+		}
+
+		@Override
+		public void cancel() {
+			this.context.cancel();
+		}
+	}
+
+	private final ExecutorService executor;
+	private int parallel;
+	private long timeout;
+
+	public SQLLoopPlugin() {
+		int threads = 16;
+		int poolSize = 10;
+		this.parallel = 1;
+		this.timeout = 0;
+		InputStream resourceAsStream = null;
+		try {
+			Properties props = new Properties();
+			resourceAsStream = this.getClass().getResourceAsStream("/dbw.properties");
+			props.load(resourceAsStream);
+			threads = Integer.parseInt(props.getProperty("dbw.wiki.sqlloop.threads",
+				"16"));
+			this.parallel = Integer.parseInt(props.getProperty(
+				"dbw.wiki.sqlloop.parallel", "1"));
+			poolSize = Integer.parseInt(props.getProperty(
+				"dbw.db.backend.postgres.pool.max", "10"));
+			this.timeout = Integer.parseInt(props.getProperty(
+				"dbw.wiki.sqlloop.timeout", "0")) * 1000L;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			IOUtils.closeQuietly(resourceAsStream);
+		}
+		// the page keeps its own connection while the loops run
+		this.parallel = Math.max(1, Math.min(this.parallel, poolSize - 1));
+		if (threads > 0 && this.parallel > 1) {
+			final AtomicInteger threadNumber = new AtomicInteger();
+			this.executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						Thread thread = new Thread(r, "dbw-sqlloop-"
+							+ threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		} else {
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * stops the threads running the queries
+	 */
+	@Override
+	public void close() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+		}
+	}
+
+	private static String renderError(final String message) {
+		return String.format("**SQL error:** {{{%s}}}",
+			StringUtils.replace(message, "}}}", "} } }"));
+	}
+
+	/**
+	 * @return the innermost message of a backend error, null if the exception
+	 *         was not caused by the backend
+	 */
+	private static String getBackendMessage(final Throwable e) {
+		String message = null;
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof BackendException || t instanceof SQLException) {
+				message = t.getMessage();
+			}
+		}
+		return message;
+	}
+
+	/**
+	 * runs the query of the loop on the executor or inline in the calling thread
+	 * so that it uses the connection of the page
+	 */
+	private void start(final Loop loop, final boolean inline,
+		final QueryContext pageContext, final String user, final String password,
+		final String db, final Backend backend) {
+		if (inline) {
+			int timeout = pageContext.getTimeout();
+			int maxRows = pageContext.getMaxRows();
+			long maxBytes = pageContext.getMaxBytes();
+			pageContext.setLimits(loop.context.getTimeout(),
+				loop.context.getMaxRows(), loop.context.getMaxBytes());
+			try {
+				loop.done(backend.iterateQuery(user, password, db, loop.query), null);
+			} catch (BackendException e) {
+				loop.done(null, e);
+			} finally {
+				pageContext.setLimits(timeout, maxRows, maxBytes);
+			}
+			return;
+		}
+		pageContext.register(loop);
+		loop.future = this.executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				QueryContext.attach(loop.context);
+				try {
+					loop.done(backend.iterateQuery(user, password, db, loop.query),
+						null);
+				} catch (BackendException e) {
+					loop.done(null, e);
+				} catch (RuntimeException e) {
+					loop.done(null, new BackendException(e));
+				} finally {
+					QueryContext.detach();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return false if the query did not finish before the deadline
+	 */
+	private boolean await(final Loop loop, final long deadline)
+		throws PluginException {
+		if (loop.future == null) {
+			return true;
+		}
+		try {
+			loop.future.get(Math.max(0, deadline - System.currentTimeMillis()),
+				TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (ExecutionException e) {
+			throw new PluginException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PluginException(e);
+		}
+	}
+
+	private String render(final Loop loop, final HashMap<String, Object> data,
+		final TemplateCache templates) throws PluginException {
+		if (loop.error != null) {
+			return SQLLoopPlugin.renderError(SQLLoopPlugin
+				.getBackendMessage(loop.error));
+		}
+		try {
+			Template template = templates.get(loop.body);
+			data.put("rows", new RowsModel(loop.rows, templates.getConfiguration()
+				.getObjectWrapper()));
+			StringWriter sw = new StringWriter();
+			template.process(data, sw);
+			return sw.toString();
+		} catch (IOException e) {
+			throw new PluginException(e);
+		} catch (TemplateException e) {
+			String message = SQLLoopPlugin.getBackendMessage(e);
+			if (message == null) {
+				throw new PluginException(e);
+			}
+			return SQLLoopPlugin.renderError(message);
+		} finally {
+			loop.rows.close();
+		}
+	}
 
 	@SuppressWarnings("unchecked")
 	@Override
@@ -52,40 +297,96 @@ public class SQLLoopPlugin implements Plugin {
 		final String user, final String password, final Backend backend)
 		throws PluginException {
 		Field<String> field = doc.getAllFields().get(fieldname);
-		String renderedText = field.getValue();
-		if (renderedText == null) {
+		String text = field.getValue();
+		if (text == null) {
 			return;
 		}
-		Configuration conf = new Configuration();
-		conf.setTagSyntax(Configuration.SQUARE_BRACKET_TAG_SYNTAX);
-		Matcher loopMatcher = SQLLoopPlugin.REGEX.matcher(renderedText);
+		TemplateCache templates = TemplateCache.getInstance(TemplateCache.SQL);
+		HashMap<String, Object> data = new HashMap<String, Object>();
+		data.put("doc", doc);
+		data.put("fields", doc.getAllFields());
+		QueryContext context = QueryContext.current();
+		boolean ownContext = context == null;
+		if (ownContext) {
+			context = QueryContext.enter();
+		}
+		List<Loop> loops = new ArrayList<Loop>();
+		Matcher loopMatcher = SQLLoopPlugin.REGEX.matcher(text);
 		while (loopMatcher.find()) {
-			String query = loopMatcher.group(1);
-			String body = loopMatcher.group(2);
-			Template template;
+			Loop loop = new Loop(loopMatcher.start(), loopMatcher.end(),
+				loopMatcher.group(2), loopMatcher.group(3));
+			int loopTimeout = context.getTimeout();
+			int loopMaxRows = context.getMaxRows();
+			long loopMaxBytes = context.getMaxBytes();
+			Matcher attributeMatcher = SQLLoopPlugin.ATTRIBUTE.matcher(loopMatcher
+				.group(1));
+			while (attributeMatcher.find()) {
+				if ("timeout".equals(attributeMatcher.group(1))) {
+					loopTimeout = Integer.parseInt(attributeMatcher.group(2));
+				} else if ("maxrows".equals(attributeMatcher.group(1))) {
+					loopMaxRows = Integer.parseInt(attributeMatcher.group(2));
+				} else if ("maxbytes".equals(attributeMatcher.group(1))) {
+					loopMaxBytes = Long.parseLong(attributeMatcher.group(2));
+				}
+			}
+			loop.context.setLimits(loopTimeout, loopMaxRows, loopMaxBytes);
 			try {
-				template = new Template("name", new StringReader(query), conf);
-				HashMap<String, Object> data = new HashMap<String, Object>();
-				data.put("doc", doc);
-				data.put("fields", doc.getAllFields());
+				Template template = templates.get(loop.query);
 				StringWriter sw = new StringWriter();
 				template.process(data, sw);
-				query = sw.getBuffer().toString();
-				List<Row> rows = backend.executeQuery(user, password,
-					doc.getDatabase(), query);
-				template = new Template("name", new StringReader(body), conf);
-				data.put("rows", rows);
-				sw = new StringWriter();
-				template.process(data, sw);
-				renderedText = renderedText
-					.replace(loopMatcher.group(0), sw.toString());
-				field.setValue(renderedText);
+				loop.query = sw.getBuffer().toString();
 			} catch (IOException e) {
 				throw new PluginException(e);
 			} catch (TemplateException e) {
 				throw new PluginException(e);
-			} catch (BackendException e) {
-				throw new PluginException(e);
+			}
+			loops.add(loop);
+		}
+		if (loops.isEmpty()) {
+			if (ownContext) {
+				QueryContext.exit();
+			}
+			return;
+		}
+		// the queries run ahead of the rendering in a window of parallel loops
+		int window = this.executor == null || loops.size() == 1 ? 1
+			: this.parallel;
+		long deadline = this.timeout > 0 ? System.currentTimeMillis()
+			+ this.timeout : Long.MAX_VALUE;
+		StringBuilder result = new StringBuilder();
+		int started = 0;
+		int finished = 0;
+		int copied = 0;
+		try {
+			for (int i = 0; i < loops.size(); i++) {
+				while (started < loops.size() && started < i + window) {
+					this.start(loops.get(started++), window == 1, context, user,
+						password, doc.getDatabase(), backend);
+				}
+				Loop loop = loops.get(i);
+				result.append(text, copied, loop.start);
+				if (this.await(loop, deadline)) {
+					result.append(this.render(loop, data, templates));
+				} else {
+					loop.abandon();
+					result.append(SQLLoopPlugin.renderError(String.format(
+						"The query did not finish within %d seconds.",
+						this.timeout / 1000)));
+				}
+				context.unregister(loop);
+				copied = loop.end;
+				finished++;
+			}
+			result.append(text, copied, text.length());
+			field.setValue(result.toString());
+		} finally {
+			// only left over after an error
+			for (int i = finished; i < started; i++) {
+				loops.get(i).abandon();
+				context.unregister(loops.get(i));
+			}
+			if (ownContext) {
+				QueryContext.exit();
 			}
 		}
 	}
@@ -0,0 +1,122 @@
+/*
+   Copyright 2011 Bastian Mathes
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package jp.mathes.databaseWiki.wiki;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jp.mathes.databaseWiki.cache.BoundedCache;
+import jp.mathes.databaseWiki.metrics.Metrics;
+
+import org.apache.commons.io.IOUtils;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+
+/**
+ * Compiled inline templates of one plugin family, keyed by their source. All
+ * templates of a family share one {@link Configuration}, which like the
+ * templates may be used by several threads once set up. The cache holds at
+ * most dbw.wiki.templatecache.size bytes of templates; hits and
+ * misses are published in {@link Metrics} as templates_[family].
+ */
+public class TemplateCache {
+
+	/** queries and bodies of SQL loops and buttons, [#...] tags */
+	public static final String SQL = "sql";
+	/** parameters of new actions, &lt;#...&gt; tags */
+	public static final String NEW = "new";
+
+	private static final ConcurrentMap<String, TemplateCache> families = new ConcurrentHashMap<String, TemplateCache>();
+
+	private final Configuration configuration;
+	private final BoundedCache<String, Template> cache;
+
+	public TemplateCache(final Configuration configuration, final long maxBytes) {
+		this.configuration = configuration;
+		// the parsed tree is roughly proportional to the source
+		this.cache = BoundedCache.forStrings(maxBytes);
+	}
+
+	public static TemplateCache getInstance(final String family) {
+		TemplateCache templates = TemplateCache.families.get(family);
+		if (templates == null) {
+			Configuration configuration = new Configuration();
+			if (TemplateCache.SQL.equals(family)) {
+				configuration.setTagSyntax(Configuration.SQUARE_BRACKET_TAG_SYNTAX);
+			}
+			templates = new TemplateCache(configuration, TemplateCache.loadSize());
+			TemplateCache existing = TemplateCache.families.putIfAbsent(family,
+				templates);
+			if (existing != null) {
+				return existing;
+			}
+			final TemplateCache registered = templates;
+			Metrics.getInstance().addSource("templates_" + family,
+				new Metrics.Source() {
+					@Override
+					public Map<String, Long> getStatistics() {
+						return registered.getStatistics();
+					}
+				});
+		}
+		return templates;
+	}
+
+	private static long loadSize() {
+		InputStream resourceStream = null;
+		try {
+			Properties props = new Properties();
+			resourceStream = TemplateCache.class
+				.getResourceAsStream("/dbw.properties");
+			props.load(resourceStream);
+			return Long.parseLong(props.getProperty("dbw.wiki.templatecache.size",
+				"4194304"));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 4194304;
+		} finally {
+			IOUtils.closeQuietly(resourceStream);
+		}
+	}
+
+	public Configuration getConfiguration() {
+		return this.configuration;
+	}
+
+	/**
+	 * @return the compiled template, parsed on the first use of the source
+	 * @throws IOException also for syntax errors
+	 */
+	public Template get(final String source) throws IOException {
+		Template template = this.cache.get(source);
+		if (template == null) {
+			template = new Template("name", new StringReader(source),
+				this.configuration);
+			this.cache.put(source, template);
+		}
+		return template;
+	}
+
+	public Map<String, Long> getStatistics() {
+		return this.cache.getStatistics();
+	}
+}
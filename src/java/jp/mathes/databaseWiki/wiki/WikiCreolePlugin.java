@@ -20,7 +20,7 @@ import jp.mathes.databaseWiki.db.Document;
 import jp.mathes.databaseWiki.db.Field;
 import ys.wikiparser.WikiParser;
 
-public class WikiCreolePlugin implements Plugin {
+public class WikiCreolePlugin implements Plugin, Deterministic {
 
 	@Override
 	@SuppressWarnings("unchecked")